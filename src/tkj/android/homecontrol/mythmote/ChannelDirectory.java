@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+
+/**
+ * The channel list of one frontend, indexed for type-ahead search by channel
+ * number, callsign and name prefix. Directories are immutable once built and
+ * are kept per frontend for as long as the session's QueryCache keeps
+ * "query channels" answers; after that the next search fetches the list
+ * again, so channel changes on the backend show up.
+ */
+public class ChannelDirectory {
+
+	public static final String QUERY_CHANNELS = "query channels";
+
+	private static final long TIME_TO_LIVE = QueryCache
+			.getTimeToLive(QUERY_CHANNELS);
+
+	private static final HashMap<String, ChannelDirectory> sDirectories = new HashMap<String, ChannelDirectory>();
+
+	private final long mExpires = SystemClock.uptimeMillis() + TIME_TO_LIVE;
+
+	private final int[] mChanIds;
+	private final String[] mNumbers;
+	private final String[] mCallsigns;
+	private final String[] mNames;
+
+	/** Lower case search keys and the channel order that sorts them **/
+	private final String[][] mKeys;
+	private final int[][] mOrders;
+	/** Channels sorted by the numeric value of their channel number **/
+	private final int[] mByNumber;
+
+	/** Marks channels already returned by the current search **/
+	private final int[] mSeen;
+	private int mSearchStamp;
+
+	private ChannelDirectory(ArrayList<String[]> rows, int[] chanIds) {
+		final int count = chanIds.length;
+		mChanIds = chanIds;
+		mNumbers = new String[count];
+		mCallsigns = new String[count];
+		mNames = new String[count];
+		for (int i = 0; i < count; i++) {
+			String[] row = rows.get(i);
+			mNumbers[i] = row[0];
+			mCallsigns[i] = row[1];
+			mNames[i] = row[2];
+		}
+
+		String[][] sources = { mNumbers, mCallsigns, mNames };
+		mKeys = new String[sources.length][];
+		mOrders = new int[sources.length][];
+		for (int s = 0; s < sources.length; s++)
+			buildIndex(s, sources[s]);
+		mByNumber = sortByNumber(mNumbers);
+
+		mSeen = new int[count];
+	}
+
+	/**
+	 * Returns the directory cached for the frontend, or null if there is none
+	 * or it has expired
+	 */
+	public static ChannelDirectory get(FrontendLocation frontend) {
+		synchronized (sDirectories) {
+			final String key = keyFor(frontend);
+			ChannelDirectory directory = sDirectories.get(key);
+			if (directory != null
+					&& directory.mExpires <= SystemClock.uptimeMillis()) {
+				sDirectories.remove(key);
+				return null;
+			}
+			return directory;
+		}
+	}
+
+	/** Caches the directory for the frontend **/
+	public static void put(FrontendLocation frontend,
+			ChannelDirectory directory) {
+		synchronized (sDirectories) {
+			sDirectories.put(keyFor(frontend), directory);
+		}
+	}
+
+	public int size() {
+		return mChanIds.length;
+	}
+
+	public int getChanId(int channel) {
+		return mChanIds[channel];
+	}
+
+	public String getNumber(int channel) {
+		return mNumbers[channel];
+	}
+
+	public String getCallsign(int channel) {
+		return mCallsigns[channel];
+	}
+
+	public String getName(int channel) {
+		return mNames[channel];
+	}
+
+	/** Returns the command that tunes the channel directly **/
+	public String getPlayCommand(int channel) {
+		return "chanid " + mChanIds[channel];
+	}
+
+	/**
+	 * Finds channels whose number, callsign or name starts with the prefix.
+	 * Matching channels are written to results, numbers first, and the count
+	 * is returned. An empty prefix lists channels in number order.
+	 */
+	public synchronized int search(String prefix, int[] results) {
+		final String key = prefix.trim().toLowerCase();
+		if (++mSearchStamp == 0) {
+			Arrays.fill(mSeen, 0);
+			mSearchStamp = 1;
+		}
+
+		int found = 0;
+		if (key.length() == 0) {
+			while (found < results.length && found < mByNumber.length) {
+				results[found] = mByNumber[found];
+				found++;
+			}
+			return found;
+		}
+
+		for (int s = 0; s < mKeys.length && found < results.length; s++) {
+			final String[] keys = mKeys[s];
+			final int[] order = mOrders[s];
+			for (int i = lowerBound(keys, key); i < keys.length
+					&& found < results.length && keys[i].startsWith(key); i++) {
+				int channel = order[i];
+				if (mSeen[channel] == mSearchStamp)
+					continue;
+				mSeen[channel] = mSearchStamp;
+				results[found++] = channel;
+			}
+		}
+		return found;
+	}
+
+	private void buildIndex(int index, final String[] values) {
+		final int count = values.length;
+		Integer[] order = new Integer[count];
+		final String[] lower = new String[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+			lower[i] = values[i].toLowerCase();
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return lower[a].compareTo(lower[b]);
+			}
+		});
+
+		mKeys[index] = new String[count];
+		mOrders[index] = new int[count];
+		for (int i = 0; i < count; i++) {
+			mOrders[index][i] = order[i];
+			mKeys[index][i] = lower[order[i]];
+		}
+	}
+
+	/**
+	 * Orders channels by the number their channel number starts with, so 9
+	 * comes before 10; sub-channels such as "5_1" follow "5" in text order
+	 */
+	private static int[] sortByNumber(final String[] numbers) {
+		final int count = numbers.length;
+		final long[] values = new long[count];
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+			long value = 0;
+			for (int c = 0; c < numbers[i].length()
+					&& Character.isDigit(numbers[i].charAt(c))
+					&& value < Integer.MAX_VALUE; c++)
+				value = value * 10 + (numbers[i].charAt(c) - '0');
+			values[i] = value;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (values[a] != values[b])
+					return values[a] < values[b] ? -1 : 1;
+				return numbers[a].compareTo(numbers[b]);
+			}
+		});
+
+		int[] sorted = new int[count];
+		for (int i = 0; i < count; i++)
+			sorted[i] = order[i];
+		return sorted;
+	}
+
+	private static int lowerBound(String[] keys, String key) {
+		int low = 0;
+		int high = keys.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (keys[middle].compareTo(key) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private static String keyFor(FrontendLocation frontend) {
+		return frontend.Address + ":" + frontend.Port;
+	}
+
+	/**
+	 * Parses "query channels" output as it streams in. Each line holds the
+	 * channel id, the channel number, the callsign and the name; callsign and
+	 * name may be quoted.
+	 */
+	public static class Builder implements ResponseReader.LineHandler {
+
+		private final ArrayList<String[]> mRows = new ArrayList<String[]>();
+		private int[] mChanIds = new int[256];
+
+		public boolean onLine(String line) {
+			String[] fields = new String[4];
+			int position = 0;
+			for (int f = 0; f < fields.length; f++) {
+				while (position < line.length() && line.charAt(position) == ' ')
+					position++;
+				if (position >= line.length())
+					break;
+
+				int end;
+				if (line.charAt(position) == '"') {
+					position++;
+					end = line.indexOf('"', position);
+					if (end < 0)
+						end = line.length();
+					fields[f] = line.substring(position, end);
+					end++;
+				} else {
+					// the name is the rest of the line
+					end = f == fields.length - 1 ? line.length() : line
+							.indexOf(' ', position);
+					if (end < 0)
+						end = line.length();
+					fields[f] = line.substring(position, end).trim();
+				}
+				position = end;
+			}
+			if (fields[1] == null)
+				return true;
+
+			int chanId;
+			try {
+				chanId = Integer.parseInt(fields[0]);
+			} catch (NumberFormatException e) {
+				return true;
+			}
+
+			if (mRows.size() == mChanIds.length)
+				mChanIds = copyOf(mChanIds, mChanIds.length * 2);
+			mChanIds[mRows.size()] = chanId;
+			mRows.add(new String[] { fields[1],
+					fields[2] == null ? "" : fields[2],
+					fields[3] == null ? "" : fields[3] });
+			return true;
+		}
+
+		/** Builds the indexed directory from the lines parsed so far **/
+		public ChannelDirectory build() {
+			return new ChannelDirectory(mRows, copyOf(mChanIds, mRows.size()));
+		}
+
+		private static int[] copyOf(int[] source, int length) {
+			int[] copy = new int[length];
+			System.arraycopy(source, 0, copy, 0, Math.min(length,
+					source.length));
+			return copy;
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager.MythKey;
+import android.os.Handler;
+import android.widget.TextView;
+
+/**
+ * Direct channel entry for the number pad. While enabled, digit buttons are
+ * collected on the device instead of being sent one key at a time. The
+ * channel is tuned with a single "play channel" command once no digit has
+ * been pressed for the entry delay, or straight away on enter.
+ *
+ * Only used from the UI thread.
+ */
+public class ChannelEntry {
+
+	public static final int DEFAULT_DELAY = 1000;
+
+	/** Longest channel number that is collected **/
+	private static final int MAX_DIGITS = 8;
+
+	private final Handler mHandler = new Handler();
+	private final StringBuilder mDigits = new StringBuilder(MAX_DIGITS);
+	private final MythCom mComm;
+	private boolean mEnabled = false;
+	private int mDelay = DEFAULT_DELAY;
+	private TextView mDisplay;
+	private CharSequence mDisplayLabel;
+
+	private final Runnable mCommit = new Runnable() {
+		public void run() {
+			commit();
+		}
+	};
+
+	public ChannelEntry(MythCom comm) {
+		mComm = comm;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/** Turns channel entry on or off. Pending digits are thrown away **/
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+		clear();
+	}
+
+	/** Sets how long to wait for another digit, in milliseconds **/
+	public void setDelay(int delay) {
+		mDelay = delay > 0 ? delay : DEFAULT_DELAY;
+	}
+
+	/**
+	 * Sets the view that shows the digits entered so far. Its own text is
+	 * shown again when there are none.
+	 */
+	public void setDisplay(TextView display) {
+		if (mDisplay != null)
+			mDisplay.setText(mDisplayLabel);
+		mDisplay = display;
+		mDisplayLabel = display == null ? null : display.getText();
+		updateDisplay();
+	}
+
+	/**
+	 * Handles a number pad button. Returns true if the button was consumed
+	 * by channel entry and should not be sent to the frontend.
+	 */
+	public boolean handleKey(MythKey key) {
+		if (!mEnabled)
+			return false;
+
+		switch (key) {
+		case BUTTON_0:
+		case BUTTON_1:
+		case BUTTON_2:
+		case BUTTON_3:
+		case BUTTON_4:
+		case BUTTON_5:
+		case BUTTON_6:
+		case BUTTON_7:
+		case BUTTON_8:
+		case BUTTON_9:
+			if (mDigits.length() < MAX_DIGITS)
+				mDigits.append((char) ('0' + key.ordinal()
+						- MythKey.BUTTON_0.ordinal()));
+			mHandler.removeCallbacks(mCommit);
+			mHandler.postDelayed(mCommit, mDelay);
+			updateDisplay();
+			return true;
+
+		case BUTTON_ENTER:
+			// with nothing entered enter goes to the frontend as usual
+			if (mDigits.length() == 0)
+				return false;
+			commit();
+			return true;
+
+		case BUTTON_BACKSPACE:
+			if (mDigits.length() == 0)
+				return false;
+			mDigits.setLength(mDigits.length() - 1);
+			mHandler.removeCallbacks(mCommit);
+			if (mDigits.length() > 0)
+				mHandler.postDelayed(mCommit, mDelay);
+			updateDisplay();
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	/** Throws away any digits that have not been sent **/
+	public void clear() {
+		mHandler.removeCallbacks(mCommit);
+		mDigits.setLength(0);
+		updateDisplay();
+	}
+
+	/** Tunes the entered channel **/
+	private void commit() {
+		mHandler.removeCallbacks(mCommit);
+		if (mDigits.length() > 0)
+			mComm.SendPlaybackCmd("channel " + mDigits);
+		mDigits.setLength(0);
+		updateDisplay();
+	}
+
+	private void updateDisplay() {
+		if (mDisplay == null)
+			return;
+		if (mDigits.length() > 0)
+			mDisplay.setText(mDigits.toString());
+		else
+			mDisplay.setText(mDisplayLabel);
+	}
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import tkj.android.homecontrol.mythmote.db.MythMoteRepository;
+import android.app.ListActivity;
+import android.content.Context;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Type-ahead channel search. The frontend's channel list is fetched once and
+ * searched on the device; picking a channel tunes it with a single
+ * "play chanid" command.
+ */
+public class ChannelSearch extends ListActivity implements
+		MythCom.StatusChangedEventListener, MythCom.QueryCompleteListener,
+		TextWatcher {
+
+	/** Most channels shown for one search **/
+	private static final int MAX_RESULTS = 200;
+
+	private final int[] mResults = new int[MAX_RESULTS];
+	private ResultAdapter mAdapter;
+	private ChannelDirectory mDirectory;
+	private ChannelDirectory.Builder mBuilder;
+	private FrontendLocation mLocation;
+	private EditText mSearchText;
+	private MythCom mComm;
+
+	/** Called when the activity is first created. */
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		this.setContentView(R.layout.channelsearch);
+		this.setTitle(R.string.channels_str);
+
+		mAdapter = new ResultAdapter();
+		this.setListAdapter(mAdapter);
+
+		mSearchText = (EditText) this.findViewById(R.id.EditTextChannelSearch);
+		mSearchText.addTextChangedListener(this);
+
+		// read the selected location
+		int selected = this.getSharedPreferences(
+				MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID,
+				Context.MODE_PRIVATE).getInt(
+				MythMotePreferences.PREF_SELECTED_LOCATION, -1);
+		new MythMoteRepository(this).getFrontendLocation(selected,
+				new MythMoteRepository.Callback<FrontendLocation>() {
+					public void onResult(FrontendLocation location) {
+						if (!isFinishing())
+							connect(location);
+					}
+				});
+	}
+
+	/**
+	 * Shows the cached channels of the selected frontend once it has been
+	 * loaded, or opens a session with it to fetch them
+	 */
+	private void connect(FrontendLocation location) {
+		mLocation = location;
+		if (mLocation == null) {
+			Toast.makeText(this, R.string.no_frontend_locations_defined_str,
+					Toast.LENGTH_SHORT).show();
+			this.finish();
+			return;
+		}
+
+		// the channel list is only fetched the first time
+		mDirectory = ChannelDirectory.get(mLocation);
+		if (mDirectory != null) {
+			search();
+			return;
+		}
+
+		this.setTitle(R.string.channels_loading_str);
+		mComm = new MythCom(this);
+		mComm.SetOnStatusChangeHandler(this);
+		mComm.Connect(mLocation, 0);
+	}
+
+	/**
+	 * Called when the activity is being destroyed
+	 */
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		if (mComm != null)
+			mComm.Shutdown();
+	}
+
+	/**
+	 * Called when MythCom status changes. Fetches the channel list once
+	 * connected if it is not cached yet.
+	 */
+	public void StatusChanged(String StatusMsg, int statusCode) {
+		if (statusCode == MythCom.STATUS_CONNECTED && mDirectory == null
+				&& mBuilder == null) {
+			mBuilder = new ChannelDirectory.Builder();
+			mComm.StreamQuery(ChannelDirectory.QUERY_CHANNELS, mBuilder, this);
+		} else if (statusCode == MythCom.STATUS_ERROR) {
+			this.setTitle(StatusMsg);
+		}
+	}
+
+	/**
+	 * Called when the channel list has been received
+	 */
+	public void QueryComplete(String command, String response) {
+		if (response == null) {
+			mBuilder = null;
+			this.setTitle(R.string.channels_failed_str);
+			return;
+		}
+
+		mDirectory = mBuilder.build();
+		ChannelDirectory.put(mLocation, mDirectory);
+		this.setTitle(R.string.channels_str);
+		search();
+	}
+
+	/**
+	 * Tunes the selected channel. The command goes through the remote's
+	 * session when it is connected to the same frontend. Otherwise it is
+	 * sent on a connection of its own, since ours is only opened to fetch
+	 * the channel list and is shut down as soon as the search closes.
+	 */
+	@Override
+	protected void onListItemClick(ListView l, View v, int position, long id) {
+		final String command = mDirectory.getPlayCommand(mResults[position]);
+		MythCom session = MythComService.getSession(this);
+		FrontendLocation frontend = session.GetFrontend();
+		if (session.IsConnected() && frontend != null
+				&& frontend.Port == mLocation.Port
+				&& mLocation.Address.equals(frontend.Address)) {
+			session.SendPlaybackCmd(command);
+		} else {
+			final FrontendLocation location = mLocation;
+			new Thread(new Runnable() {
+				public void run() {
+					MythCom.SendOnce(location,
+							CommandSequence.parse("play " + command));
+				}
+			}, "MythMote-tune").start();
+		}
+		this.finish();
+	}
+
+	public void afterTextChanged(Editable s) {
+		search();
+	}
+
+	public void beforeTextChanged(CharSequence s, int start, int count,
+			int after) {
+	}
+
+	public void onTextChanged(CharSequence s, int start, int before, int count) {
+	}
+
+	/** Runs the current search text against the directory **/
+	private void search() {
+		if (mDirectory == null)
+			return;
+		mAdapter.setCount(mDirectory.search(mSearchText.getText().toString(),
+				mResults));
+	}
+
+	/** Adapter over the current search results **/
+	private class ResultAdapter extends BaseAdapter {
+
+		private int mCount = 0;
+
+		void setCount(int count) {
+			mCount = count;
+			this.notifyDataSetChanged();
+		}
+
+		public int getCount() {
+			return mCount;
+		}
+
+		public Object getItem(int position) {
+			return mDirectory.getName(mResults[position]);
+		}
+
+		public long getItemId(int position) {
+			return mResults[position];
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = convertView;
+			if (view == null)
+				view = getLayoutInflater().inflate(
+						android.R.layout.simple_list_item_2, parent, false);
+
+			int channel = mResults[position];
+			((TextView) view.findViewById(android.R.id.text1))
+					.setText(mDirectory.getNumber(channel) + "  "
+							+ mDirectory.getCallsign(channel));
+			((TextView) view.findViewById(android.R.id.text2))
+					.setText(mDirectory.getName(channel));
+			return view;
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A mythfrontend command that has already been encoded to its newline
+ * terminated ASCII wire form. Frames are immutable and are built once, so
+ * sending one does not allocate.
+ */
+public final class CommandFrame {
+
+	/** Byte sent in place of characters that are not 7-bit ASCII **/
+	private static final byte UNMAPPABLE = '?';
+
+	/** Commands that may change what the frontend is showing **/
+	private static final String[] STATE_CHANGING_VERBS = { "play", "jump",
+			"key" };
+
+	private final String mCommand;
+	private final byte[] mBytes;
+	private final boolean mChangesState;
+	private final Metrics.Counter mSent;
+
+	private CommandFrame(String command) {
+		mCommand = command;
+
+		// encode straight to ASCII, no charset encoder needed
+		final int length = command.length();
+		final boolean terminated = length > 0
+				&& command.charAt(length - 1) == '\n';
+		mBytes = new byte[terminated ? length : length + 1];
+		for (int i = 0; i < length; i++) {
+			char c = command.charAt(i);
+			mBytes[i] = c < 0x80 ? (byte) c : UNMAPPABLE;
+		}
+		mBytes[mBytes.length - 1] = '\n';
+
+		boolean changesState = false;
+		for (String verb : STATE_CHANGING_VERBS) {
+			if (command.regionMatches(true, 0, verb, 0, verb.length()))
+				changesState = true;
+		}
+		mChangesState = changesState;
+
+		// count sends per verb, looked up once per frame
+		int space = command.indexOf(' ');
+		String verb = (space < 0 ? command : command.substring(0, space))
+				.trim().toLowerCase();
+		mSent = Metrics.counter(Metrics.COMMANDS
+				+ (verb.length() > 0 ? verb : "other"));
+	}
+
+	/** Encodes the given command. A trailing newline is added if missing **/
+	public static CommandFrame create(String command) {
+		return new CommandFrame(command);
+	}
+
+	/** Returns the command this frame was built from **/
+	public String getCommand() {
+		return mCommand;
+	}
+
+	/** Returns true if the command may change the frontend's screen **/
+	public boolean changesState() {
+		return mChangesState;
+	}
+
+	/** Returns the number of bytes put on the wire, newline included **/
+	public int length() {
+		return mBytes.length;
+	}
+
+	/**
+	 * Writes the frame to the channel using the given buffer as scratch
+	 * space. Frames larger than the buffer are written in chunks.
+	 */
+	void writeTo(WritableByteChannel channel, ByteBuffer buffer)
+			throws IOException {
+		int offset = 0;
+		while (offset < mBytes.length) {
+			buffer.clear();
+			int count = Math.min(buffer.remaining(), mBytes.length - offset);
+			buffer.put(mBytes, offset, count);
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			offset += count;
+		}
+		countSent();
+	}
+
+	/**
+	 * Adds the frame to a batch being collected in the buffer. Returns false,
+	 * leaving the buffer unchanged, if the frame does not fit. The caller
+	 * calls countSent() once the batch has been written.
+	 */
+	boolean putInto(ByteBuffer buffer) {
+		if (buffer.remaining() < mBytes.length)
+			return false;
+		buffer.put(mBytes);
+		return true;
+	}
+
+	/** Counts the frame in the metrics as written to the socket **/
+	void countSent() {
+		mSent.inc();
+		Metrics.BYTES_WRITTEN.add(mBytes.length);
+	}
+
+	/**
+	 * Bounded cache of frames that share a command prefix such as "key ".
+	 * Looking up an argument that has been seen before returns the same frame
+	 * without building any strings.
+	 */
+	public static final class Pool {
+
+		private final String mPrefix;
+		private final Map<String, CommandFrame> mFrames;
+
+		public Pool(String prefix, final int capacity) {
+			mPrefix = prefix;
+			mFrames = new LinkedHashMap<String, CommandFrame>(capacity, 0.75f,
+					true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, CommandFrame> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+
+		/**
+		 * Builds the frames for the given arguments up front, so looking them
+		 * up later never allocates. Call before the pool is shared.
+		 */
+		public synchronized void preload(String... arguments) {
+			for (String argument : arguments)
+				obtain(argument);
+		}
+
+		/** Returns the frame for prefix + argument, creating it if needed **/
+		public synchronized CommandFrame obtain(String argument) {
+			CommandFrame frame = mFrames.get(argument);
+			if (frame == null) {
+				frame = new CommandFrame(mPrefix.length() == 0 ? argument
+						: mPrefix + argument);
+				mFrames.put(argument, frame);
+			}
+			return frame;
+		}
+	}
+
+}
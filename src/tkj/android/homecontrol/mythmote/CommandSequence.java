@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.ArrayList;
+
+/**
+ * A key binding command made of several steps, for example
+ * "jump playbackrecordings; key down x3; key enter". Steps are separated by
+ * semicolons or new lines and may be:
+ * <ul>
+ * <li>a frontend command, optionally repeated with a trailing "xN"; "x0"
+ * and a malformed count such as "x3a" send nothing</li>
+ * <li>"wait N" to pause for N milliseconds</li>
+ * <li>"waitprompt" to wait until the frontend has answered every command
+ * sent so far</li>
+ * </ul>
+ * The text is parsed once and every command is encoded up front, so running
+ * the sequence only writes bytes. Sequences are immutable apart from the
+ * step timings of the last run.
+ */
+public final class CommandSequence {
+
+	static final int STEP_SEND = 0;
+	static final int STEP_WAIT = 1;
+	static final int STEP_WAIT_PROMPT = 2;
+
+	/** Longest pause a single wait step may ask for **/
+	public static final int MAX_WAIT = 10000;
+
+	/** Most times a single command may be repeated **/
+	public static final int MAX_REPEAT = 50;
+
+	/** Cap on parsed numbers, above every limit that applies to them **/
+	private static final int MAX_COUNT = 1000000;
+
+	private static final String WAIT = "wait";
+	private static final String WAIT_PROMPT = "waitprompt";
+
+	private final String mText;
+	private final int[] mTypes;
+	private final CommandFrame[] mFrames;
+	private final int[] mArguments;
+
+	/** Milliseconds from the start of the last run to the end of each step **/
+	private volatile long[] mStepTimes;
+
+	private CommandSequence(String text, int[] types, CommandFrame[] frames,
+			int[] arguments) {
+		mText = text;
+		mTypes = types;
+		mFrames = frames;
+		mArguments = arguments;
+	}
+
+	/** Parses the command text of a key binding **/
+	public static CommandSequence parse(String text) {
+		ArrayList<String> steps = new ArrayList<String>();
+		int start = 0;
+		final int length = text.length();
+		for (int i = 0; i <= length; i++) {
+			if (i == length || text.charAt(i) == ';' || text.charAt(i) == '\n') {
+				String step = text.substring(start, i).trim();
+				if (step.length() > 0)
+					steps.add(step);
+				start = i + 1;
+			}
+		}
+
+		final int count = steps.size();
+		int[] types = new int[count];
+		CommandFrame[] frames = new CommandFrame[count];
+		int[] arguments = new int[count];
+		for (int i = 0; i < count; i++) {
+			String step = steps.get(i);
+			if (step.equalsIgnoreCase(WAIT_PROMPT)) {
+				types[i] = STEP_WAIT_PROMPT;
+				continue;
+			}
+
+			int wait = parseWait(step);
+			if (wait >= 0) {
+				types[i] = STEP_WAIT;
+				arguments[i] = wait;
+				continue;
+			}
+
+			// "<command> xN" repeats the command N times, never sending the
+			// suffix itself; a lone "x" is left alone, it is a key name
+			int repeat = 1;
+			int space = step.lastIndexOf(' ');
+			if (space > 0) {
+				int times = parseCount(step, space + 1, 'x');
+				if (times < 0 && isRepeat(step, space + 1))
+					times = 0;
+				if (times >= 0) {
+					repeat = Math.min(times, MAX_REPEAT);
+					step = step.substring(0, space).trim();
+				}
+			}
+			types[i] = STEP_SEND;
+			frames[i] = CommandFrame.create(step);
+			arguments[i] = repeat;
+		}
+		return new CommandSequence(text, types, frames, arguments);
+	}
+
+	/** Returns the text the sequence was parsed from **/
+	public String getText() {
+		return mText;
+	}
+
+	/**
+	 * Returns true if the sequence is more than a single command and has to
+	 * be run with MythCom.SendSequence()
+	 */
+	public boolean isMacro() {
+		return mTypes.length > 1
+				|| (mTypes.length == 1 && (mTypes[0] != STEP_SEND || mArguments[0] != 1));
+	}
+
+	public int getStepCount() {
+		return mTypes.length;
+	}
+
+	/**
+	 * Returns how many milliseconds after the start of the last run each step
+	 * finished, or null if the sequence has not been run.
+	 */
+	public long[] getLastStepTimes() {
+		long[] times = mStepTimes;
+		if (times == null)
+			return null;
+		long[] copy = new long[times.length];
+		System.arraycopy(times, 0, copy, 0, times.length);
+		return copy;
+	}
+
+	int getStepType(int step) {
+		return mTypes[step];
+	}
+
+	/** Returns the frame sent by a STEP_SEND step **/
+	CommandFrame getFrame(int step) {
+		return mFrames[step];
+	}
+
+	/** Returns the repeat count of a send step or the pause of a wait step **/
+	int getArgument(int step) {
+		return mArguments[step];
+	}
+
+	void setLastStepTimes(long[] times) {
+		mStepTimes = times;
+	}
+
+	/** Returns the pause of a "wait N" step, or -1 if it is not one **/
+	private static int parseWait(String step) {
+		if (!step.regionMatches(true, 0, WAIT, 0, WAIT.length())
+				|| step.length() <= WAIT.length()
+				|| step.charAt(WAIT.length()) != ' ')
+			return -1;
+		String value = step.substring(WAIT.length() + 1).trim();
+		if (value.length() == 0)
+			return -1;
+		int wait = parseCount(value, 0, '\0');
+		return wait < 0 ? -1 : Math.min(wait, MAX_WAIT);
+	}
+
+	/** Returns true if the text from the position looks like an "xN" count **/
+	private static boolean isRepeat(String text, int position) {
+		return position + 1 < text.length() && text.charAt(position) == 'x'
+				&& text.charAt(position + 1) >= '0'
+				&& text.charAt(position + 1) <= '9';
+	}
+
+	/**
+	 * Parses the decimal number at the end of text starting at the given
+	 * position after an optional lower case prefix character. Returns -1 if
+	 * it is not a number. Values too large to matter are capped at
+	 * MAX_COUNT.
+	 */
+	private static int parseCount(String text, int position, char prefix) {
+		if (prefix != '\0') {
+			if (position >= text.length() || text.charAt(position) != prefix)
+				return -1;
+			position++;
+		}
+		if (position >= text.length())
+			return -1;
+		int value = 0;
+		for (int i = position; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = Math.min(value * 10 + (c - '0'), MAX_COUNT);
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.View;
+import android.view.ViewConfiguration;
+
+/**
+ * Touch pad for menu navigation. Gestures become arrow keys sent through a
+ * KeyStreamSender:
+ * <ul>
+ * <li>dragging sends one move for every STEP_DIP of travel</li>
+ * <li>holding a drag away from where it started keeps moving, faster the
+ * further the finger is from that point</li>
+ * <li>a fling sends a burst of moves in proportion to its speed</li>
+ * <li>a tap sends select</li>
+ * </ul>
+ * Lifting the finger without a fling drops any moves not yet sent.
+ */
+public class GesturePadView extends View {
+
+	/** Drag distance per move **/
+	private static final float STEP_DIP = 32;
+
+	/** Distance from the start of a drag at which holding repeats moves **/
+	private static final float HOLD_DIP = 48;
+
+	/** Time the finger must rest before a held drag starts repeating **/
+	private static final int HOLD_DELAY = 300;
+
+	/** Repeat interval of a held drag at HOLD_DIP, shorter further out **/
+	private static final int HOLD_INTERVAL = 250;
+
+	/** Slowest fling, in dip per second, that sends a burst of moves **/
+	private static final float MIN_FLING_DIP = 600;
+
+	/** Fling speed, in dip per second, worth one move **/
+	private static final float FLING_DIP_PER_MOVE = 400;
+
+	private final Handler mHandler = new Handler();
+	private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mTouchPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final float mDensity;
+	private final int mTouchSlop;
+	private final String mHint;
+
+	private KeyStreamSender mSender;
+	private VelocityTracker mVelocityTracker;
+	private boolean mTouching = false;
+	private boolean mDragging = false;
+	private float mDownX, mDownY;
+	private float mLastStepX, mLastStepY;
+	private float mX, mY;
+	private long mDownTime;
+
+	private final Runnable mHoldRepeat = new Runnable() {
+		public void run() {
+			repeatHeldDrag();
+		}
+	};
+
+	public GesturePadView(Context context) {
+		this(context, null);
+	}
+
+	public GesturePadView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		mDensity = context.getResources().getDisplayMetrics().density;
+		mTouchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+		mHint = context.getString(R.string.gesture_pad_hint_str);
+
+		mTextPaint.setColor(Color.GRAY);
+		mTextPaint.setTextAlign(Paint.Align.CENTER);
+		mTextPaint.setTextSize(16 * mDensity);
+		mTouchPaint.setColor(Color.DKGRAY);
+		mTouchPaint.setStyle(Paint.Style.STROKE);
+		mTouchPaint.setStrokeWidth(2 * mDensity);
+		setFocusable(true);
+	}
+
+	/** Sets the sender that moves are passed to, or null to stop sending **/
+	public void setSender(KeyStreamSender sender) {
+		if (mSender != null && mSender != sender)
+			mSender.cancel();
+		mSender = sender;
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		switch (event.getAction()) {
+		case MotionEvent.ACTION_DOWN:
+			mTouching = true;
+			mDragging = false;
+			mDownX = mLastStepX = mX = event.getX();
+			mDownY = mLastStepY = mY = event.getY();
+			mDownTime = SystemClock.uptimeMillis();
+			if (mVelocityTracker == null)
+				mVelocityTracker = VelocityTracker.obtain();
+			mVelocityTracker.clear();
+			mVelocityTracker.addMovement(event);
+			invalidate();
+			return true;
+
+		case MotionEvent.ACTION_MOVE:
+			mX = event.getX();
+			mY = event.getY();
+			if (mVelocityTracker != null)
+				mVelocityTracker.addMovement(event);
+			if (!mDragging
+					&& (Math.abs(mX - mDownX) > mTouchSlop || Math.abs(mY
+							- mDownY) > mTouchSlop))
+				mDragging = true;
+			if (mDragging)
+				stepDrag();
+
+			// a held drag repeats once the finger rests
+			mHandler.removeCallbacks(mHoldRepeat);
+			if (mDragging)
+				mHandler.postDelayed(mHoldRepeat, HOLD_DELAY);
+			invalidate();
+			return true;
+
+		case MotionEvent.ACTION_UP:
+			if (mVelocityTracker != null)
+				mVelocityTracker.addMovement(event);
+			if (!mDragging) {
+				if (mSender != null
+						&& SystemClock.uptimeMillis() - mDownTime < ViewConfiguration
+								.getLongPressTimeout())
+					mSender.select();
+			} else {
+				fling();
+			}
+			endTouch();
+			return true;
+
+		case MotionEvent.ACTION_CANCEL:
+			if (mSender != null)
+				mSender.cancel();
+			endTouch();
+			return true;
+		}
+		return super.onTouchEvent(event);
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (mSender != null)
+			mSender.cancel();
+		endTouch();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		if (mTouching) {
+			// show where the drag started and how far it has gone
+			float radius = HOLD_DIP * mDensity;
+			canvas.drawCircle(mDownX, mDownY, radius, mTouchPaint);
+			canvas.drawLine(mDownX, mDownY, mX, mY, mTouchPaint);
+		} else {
+			canvas.drawText(mHint, getWidth() / 2f, getHeight() / 2f,
+					mTextPaint);
+		}
+	}
+
+	/** Sends a move for each step travelled along the main axis **/
+	private void stepDrag() {
+		if (mSender == null)
+			return;
+		final float step = STEP_DIP * mDensity;
+		float dx = mX - mLastStepX;
+		float dy = mY - mLastStepY;
+		if (Math.abs(dx) >= Math.abs(dy)) {
+			int steps = (int) (Math.abs(dx) / step);
+			if (steps > 0) {
+				mSender.move(dx > 0 ? KeyStreamSender.RIGHT
+						: KeyStreamSender.LEFT, steps);
+				mLastStepX += (dx > 0 ? steps : -steps) * step;
+				mLastStepY = mY;
+			}
+		} else {
+			int steps = (int) (Math.abs(dy) / step);
+			if (steps > 0) {
+				mSender.move(dy > 0 ? KeyStreamSender.DOWN
+						: KeyStreamSender.UP, steps);
+				mLastStepY += (dy > 0 ? steps : -steps) * step;
+				mLastStepX = mX;
+			}
+		}
+	}
+
+	/**
+	 * Sends one move toward the resting finger and schedules the next, sooner
+	 * the further the finger is from where the drag started
+	 */
+	private void repeatHeldDrag() {
+		if (!mTouching || mSender == null)
+			return;
+		float dx = mX - mDownX;
+		float dy = mY - mDownY;
+		float distance = Math.max(Math.abs(dx), Math.abs(dy));
+		final float hold = HOLD_DIP * mDensity;
+		if (distance < hold)
+			return;
+
+		// only top up, so a slow frontend is not handed a backlog
+		if (mSender.getPendingCount() == 0) {
+			if (Math.abs(dx) >= Math.abs(dy))
+				mSender.move(dx > 0 ? KeyStreamSender.RIGHT
+						: KeyStreamSender.LEFT, 1);
+			else
+				mSender.move(dy > 0 ? KeyStreamSender.DOWN
+						: KeyStreamSender.UP, 1);
+		}
+		int interval = (int) (HOLD_INTERVAL * hold / distance);
+		mHandler.postDelayed(mHoldRepeat, Math.max(interval,
+				KeyStreamSender.MIN_INTERVAL));
+	}
+
+	/**
+	 * Replaces any moves still owed by a burst matching the fling's speed, or
+	 * drops them if the finger was lifted without a fling
+	 */
+	private void fling() {
+		if (mSender == null)
+			return;
+		mSender.cancel();
+		if (mVelocityTracker == null)
+			return;
+
+		mVelocityTracker.computeCurrentVelocity(1000);
+		float vx = mVelocityTracker.getXVelocity() / mDensity;
+		float vy = mVelocityTracker.getYVelocity() / mDensity;
+		float speed = Math.max(Math.abs(vx), Math.abs(vy));
+		if (speed < MIN_FLING_DIP)
+			return;
+
+		int moves = Math.round(speed / FLING_DIP_PER_MOVE);
+		if (Math.abs(vx) >= Math.abs(vy))
+			mSender.move(vx > 0 ? KeyStreamSender.RIGHT : KeyStreamSender.LEFT,
+					moves);
+		else
+			mSender.move(vy > 0 ? KeyStreamSender.DOWN : KeyStreamSender.UP,
+					moves);
+	}
+
+	private void endTouch() {
+		mTouching = false;
+		mDragging = false;
+		mHandler.removeCallbacks(mHoldRepeat);
+		if (mVelocityTracker != null) {
+			mVelocityTracker.recycle();
+			mVelocityTracker = null;
+		}
+		invalidate();
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Sends streams of arrow keys to the frontend at a bounded rate. Moves are
+ * not queued one by one: the sender only keeps a count of moves still owed
+ * in the current direction, capped at MAX_PENDING. Changing direction or
+ * calling cancel() drops whatever is still owed, so the frontend never
+ * receives moves the user no longer wants.
+ *
+ * Only used from the UI thread.
+ */
+public class KeyStreamSender {
+
+	public static final int UP = 0;
+	public static final int DOWN = 1;
+	public static final int LEFT = 2;
+	public static final int RIGHT = 3;
+
+	/** Shortest time between two moves, in milliseconds **/
+	public static final int MIN_INTERVAL = 60;
+
+	/** Most moves that may be owed at any time **/
+	public static final int MAX_PENDING = 12;
+
+	private static final String[] KEYS = { "up", "down", "left", "right" };
+	private static final String KEY_SELECT = "enter";
+
+	private final Handler mHandler = new Handler();
+	private final MythCom mComm;
+	private int mDirection = UP;
+	private int mPending = 0;
+	private long mLastSent = 0;
+	private boolean mScheduled = false;
+
+	private final Runnable mSendNext = new Runnable() {
+		public void run() {
+			mScheduled = false;
+			sendNext();
+		}
+	};
+
+	public KeyStreamSender(MythCom comm) {
+		mComm = comm;
+	}
+
+	/** Adds moves in the given direction **/
+	public void move(int direction, int count) {
+		if (direction != mDirection) {
+			// moves the other way are stale now
+			mDirection = direction;
+			mPending = 0;
+		}
+		mPending = Math.min(mPending + count, MAX_PENDING);
+		schedule();
+	}
+
+	/** Drops owed moves and sends select straight away **/
+	public void select() {
+		cancel();
+		mComm.SendKey(KEY_SELECT);
+		mLastSent = SystemClock.uptimeMillis();
+	}
+
+	/** Drops every move not yet sent **/
+	public void cancel() {
+		mPending = 0;
+		mHandler.removeCallbacks(mSendNext);
+		mScheduled = false;
+	}
+
+	public int getPendingCount() {
+		return mPending;
+	}
+
+	private void schedule() {
+		if (mScheduled || mPending <= 0)
+			return;
+		mScheduled = true;
+		mHandler.postAtTime(mSendNext, mLastSent + MIN_INTERVAL);
+	}
+
+	private void sendNext() {
+		if (mPending <= 0)
+			return;
+		mPending--;
+		mLastSent = SystemClock.uptimeMillis();
+		mComm.SendKey(KEYS[mDirection]);
+		schedule();
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.Arrays;
+
+import android.os.SystemClock;
+import android.view.ViewConfiguration;
+
+/**
+ * Times each button press from the finger leaving the screen until the
+ * command's bytes have been written to the socket. Off unless enabled in
+ * the preferences.
+ *
+ * A press goes through the stages below in order, each stamped by mark().
+ * The last RING_SIZE presses are kept in preallocated arrays, so tracing
+ * does not allocate. report() breaks the time down per stage.
+ *
+ * Only presses sending a single command are traced; the stamps must all
+ * come from the thread that started the press, the UI thread.
+ */
+public final class LatencyTrace {
+
+	/** The touch that ended in the click, taken from the MotionEvent **/
+	public static final int TOUCH = 0;
+	/** KeyBindingManager.onClick() was called **/
+	public static final int CLICK = 1;
+	/** The button's binding was found **/
+	public static final int LOOKUP = 2;
+	/** MythCom.SendCommand() was called **/
+	public static final int SEND = 3;
+	/** The send buffer was free and the command is being written **/
+	public static final int WRITE = 4;
+	/** The socket took the bytes **/
+	public static final int FLUSH = 5;
+
+	private static final int STAGE_COUNT = 6;
+	private static final String[] STAGE_NAMES = { "touch", "click",
+			"lookup", "send", "write", "flush" };
+
+	/** Number of presses kept **/
+	public static final int RING_SIZE = 64;
+
+	private static final long[] sTimes = new long[RING_SIZE * STAGE_COUNT];
+	private static final boolean[] sComplete = new boolean[RING_SIZE];
+
+	private static volatile boolean sEnabled = false;
+	private static Thread sOwner;
+	private static int sCurrent = -1;
+	private static int sNext = 0;
+	private static int sPresses = 0;
+
+	private LatencyTrace() {
+	}
+
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+		if (!enabled)
+			sCurrent = -1;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * Starts tracing a press at the time of the touch event, given in
+	 * SystemClock.uptimeMillis() time like MotionEvent.getEventTime()
+	 */
+	public static void touch(long eventTime) {
+		if (!sEnabled)
+			return;
+		final long now = System.nanoTime();
+		begin();
+		sTimes[sCurrent * STAGE_COUNT + TOUCH] = now
+				- (SystemClock.uptimeMillis() - eventTime) * 1000000L;
+	}
+
+	/**
+	 * Stamps the stage of the press being traced. A click without a touch,
+	 * from a trackball or keyboard, starts a press of its own, as does one
+	 * coming longer than a long press after the last touch: that touch ended
+	 * without a click, for example outside the button. Ends the press at
+	 * FLUSH.
+	 */
+	public static void mark(int stage) {
+		if (!sEnabled)
+			return;
+		if (stage == CLICK && (sCurrent == -1 || sOwner != Thread.currentThread()
+				|| sTimes[sCurrent * STAGE_COUNT + CLICK] != 0 || isStale()))
+			begin();
+		if (sCurrent == -1 || sOwner != Thread.currentThread())
+			return;
+		// a send of our own, such as a key from the touch pad
+		if (stage > CLICK && sTimes[sCurrent * STAGE_COUNT + CLICK] == 0)
+			return;
+
+		sTimes[sCurrent * STAGE_COUNT + stage] = System.nanoTime();
+		if (stage == FLUSH) {
+			sComplete[sCurrent] = true;
+			sPresses++;
+			sCurrent = -1;
+		}
+	}
+
+	/**
+	 * Stops tracing the current press without keeping it, for presses that
+	 * did not send a single command
+	 */
+	public static void abandon() {
+		if (sOwner == Thread.currentThread())
+			sCurrent = -1;
+	}
+
+	/**
+	 * Returns the time between consecutive stages over the presses kept, in
+	 * microseconds. Call on the UI thread, which is the one writing them.
+	 */
+	public static String report() {
+		StringBuilder report = new StringBuilder();
+		report.append("latency ").append(sEnabled ? "on" : "off").append(
+				", ").append(sPresses).append(" presses, last ").append(
+				RING_SIZE).append(" kept, in us\n");
+
+		final long[] deltas = new long[RING_SIZE];
+		for (int stage = CLICK; stage <= FLUSH + 1; stage++) {
+			// the extra pass covers the whole press
+			final boolean total = stage > FLUSH;
+			int count = 0;
+			for (int press = 0; press < RING_SIZE; press++) {
+				if (!sComplete[press])
+					continue;
+				final int base = press * STAGE_COUNT;
+				final int from = total ? TOUCH : stage - 1;
+				final int to = total ? FLUSH : stage;
+				if (sTimes[base + from] == 0)
+					continue;
+				deltas[count++] = (sTimes[base + to] - sTimes[base + from]) / 1000;
+			}
+
+			report.append("  ").append(
+					total ? "touch>flush" : STAGE_NAMES[stage - 1] + ">"
+							+ STAGE_NAMES[stage]).append(" count=").append(
+					count);
+			if (count > 0) {
+				Arrays.sort(deltas, 0, count);
+				long sum = 0;
+				for (int i = 0; i < count; i++)
+					sum += deltas[i];
+				report.append(" mean=").append(sum / count).append(" p50=")
+						.append(deltas[(count - 1) / 2]).append(" p90=")
+						.append(deltas[(count - 1) * 9 / 10]).append(" max=")
+						.append(deltas[count - 1]);
+			}
+			report.append('\n');
+		}
+		return report.toString();
+	}
+
+	/** Forgets every press traced so far. Call on the UI thread. **/
+	public static void clear() {
+		Arrays.fill(sTimes, 0);
+		Arrays.fill(sComplete, false);
+		sCurrent = -1;
+		sPresses = 0;
+	}
+
+	/** Returns true if the current press's touch is too old for a click **/
+	private static boolean isStale() {
+		final long touch = sTimes[sCurrent * STAGE_COUNT + TOUCH];
+		return touch != 0
+				&& System.nanoTime() - touch > ViewConfiguration
+						.getLongPressTimeout() * 1000000L;
+	}
+
+	/** Takes the oldest slot of the ring for a new press **/
+	private static void begin() {
+		sCurrent = sNext;
+		sNext = (sNext + 1) % RING_SIZE;
+		sComplete[sCurrent] = false;
+		Arrays.fill(sTimes, sCurrent * STAGE_COUNT, (sCurrent + 1)
+				* STAGE_COUNT, 0);
+		sOwner = Thread.currentThread();
+	}
+
+}
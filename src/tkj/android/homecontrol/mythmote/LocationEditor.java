@@ -16,7 +16,7 @@
 
 package tkj.android.homecontrol.mythmote;
 
-import tkj.android.homecontrol.mythmote.db.MythMoteDbManager;
+import tkj.android.homecontrol.mythmote.db.MythMoteRepository;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
@@ -78,7 +78,9 @@ public class LocationEditor extends Activity
 		this.SetPort(this._location.Port);
 	}
 
-	private boolean Save()
+	/** Checks the input and starts saving the location in the background.
+	 * Returns false if the input is not valid. **/
+	private boolean Save(final MythMoteRepository.Callback<Long> saved)
 	{
 		if (this._location == null)
 			this._location = new FrontendLocation();
@@ -114,21 +116,7 @@ public class LocationEditor extends Activity
 			if (this._location.Port <= 0)
 				this._location.Port = MythCom.DEFAULT_MYTH_PORT;
 
-			MythMoteDbManager adapter = new MythMoteDbManager(this);
-			adapter.open();
-			if (this._location.ID == -1)
-			{
-				this._location.ID = (int) adapter.createFrontendLocation(
-						this._location.Name, this._location.Address,
-						this._location.Port);
-			} else
-			{
-				return adapter.updateFrontendLocation(this._location.ID,
-						this._location.Name, this._location.Address,
-						this._location.Port);
-			}
-			adapter.close();
-
+			new MythMoteRepository(this).saveFrontendLocation(this._location, saved);
 			return true;
 		}
 
@@ -138,8 +126,17 @@ public class LocationEditor extends Activity
 	private void SaveAndExit()
 	{
 		// only exit if save is successful.
-		if (Save())
-			this.finish();
+		Save(new MythMoteRepository.Callback<Long>()
+		{
+			public void onResult(Long id)
+			{
+				if (id != null && id != -1)
+				{
+					_location.ID = id.intValue();
+					finish();
+				}
+			}
+		});
 	}
 
 	private final String GetName()
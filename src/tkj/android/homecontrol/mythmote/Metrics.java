@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters, gauges and histograms describing how MythCom and
+ * the database are doing. Metrics are looked up by name once and kept in a
+ * field; updating one after that is a single atomic operation with no
+ * locking or allocation, so they can sit on the send path.
+ *
+ * The debug screen (MetricsActivity) shows and exports them.
+ */
+public final class Metrics {
+
+	/** Commands written to a frontend, followed by the command's verb **/
+	public static final String COMMANDS = "commands.";
+
+	// created before the metrics below are registered in them
+	private static final ConcurrentHashMap<String, Counter> sCounters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentHashMap<String, Gauge> sGauges = new ConcurrentHashMap<String, Gauge>();
+	private static final ConcurrentHashMap<String, Histogram> sHistograms = new ConcurrentHashMap<String, Histogram>();
+
+	public static final Counter BYTES_WRITTEN = counter("socket.bytes_written");
+	public static final Counter BYTES_READ = counter("socket.bytes_read");
+	public static final Counter CONNECT_ATTEMPTS = counter("connect.attempts");
+	public static final Counter CONNECT_FAILURES = counter("connect.failures");
+	public static final Histogram CONNECT_TIME = histogram("connect.time_ms");
+	public static final Counter RECONNECTS = counter("connect.reconnects");
+	public static final Counter POLL_SUCCESS = counter("poll.success");
+	public static final Counter POLL_FAILURE = counter("poll.failure");
+	public static final Gauge QUEUE_DEPTH = gauge("worker.queue_depth");
+	public static final Counter QUEUE_DROPPED = counter("worker.dropped");
+	public static final Histogram DB_TIME = histogram("db.op_ms");
+	public static final Histogram WIDGET_SEND_TIME = histogram("widget.send_ms");
+	public static final Counter WIDGET_SEND_FAILURES = counter("widget.send_failures");
+
+	private Metrics() {
+	}
+
+	/** A count that only goes up, until reset **/
+	public static final class Counter {
+		private final AtomicLong mValue = new AtomicLong();
+
+		public void inc() {
+			mValue.incrementAndGet();
+		}
+
+		public void add(long amount) {
+			mValue.addAndGet(amount);
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+	}
+
+	/** The latest value of something, such as a queue's length **/
+	public static final class Gauge {
+		private final AtomicLong mValue = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		public void set(long value) {
+			mValue.set(value);
+			raise(mMax, value);
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+
+		/** Returns the highest value set since the last reset **/
+		public long getMax() {
+			return mMax.get();
+		}
+	}
+
+	/**
+	 * Distribution of non-negative values in power of two buckets: bucket 0
+	 * holds 0, bucket n holds values from 2^(n-1) up to 2^n - 1. Percentiles
+	 * are reported as the upper bound of the bucket they fall in.
+	 */
+	public static final class Histogram {
+		private static final int BUCKETS = 32;
+
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mSum = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+			int bucket = 64 - Long.numberOfLeadingZeros(value);
+			mBuckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+			mCount.incrementAndGet();
+			mSum.addAndGet(value);
+			raise(mMax, value);
+		}
+
+		public long getCount() {
+			return mCount.get();
+		}
+
+		public long getMax() {
+			return mMax.get();
+		}
+
+		public long getMean() {
+			long count = mCount.get();
+			return count == 0 ? 0 : mSum.get() / count;
+		}
+
+		/** Returns the bucket bound at or below which the fraction falls **/
+		public long getPercentile(double fraction) {
+			long count = mCount.get();
+			if (count == 0)
+				return 0;
+			long wanted = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += mBuckets.get(i);
+				if (seen >= wanted)
+					return i == 0 ? 0 : Math.min((1L << i) - 1, mMax.get());
+			}
+			return mMax.get();
+		}
+
+		private void clear() {
+			for (int i = 0; i < BUCKETS; i++)
+				mBuckets.set(i, 0);
+			mCount.set(0);
+			mSum.set(0);
+			mMax.set(0);
+		}
+	}
+
+	/** Returns the counter with the name, creating it if needed **/
+	public static Counter counter(String name) {
+		Counter counter = sCounters.get(name);
+		if (counter == null) {
+			sCounters.putIfAbsent(name, new Counter());
+			counter = sCounters.get(name);
+		}
+		return counter;
+	}
+
+	/** Returns the gauge with the name, creating it if needed **/
+	public static Gauge gauge(String name) {
+		Gauge gauge = sGauges.get(name);
+		if (gauge == null) {
+			sGauges.putIfAbsent(name, new Gauge());
+			gauge = sGauges.get(name);
+		}
+		return gauge;
+	}
+
+	/** Returns the histogram with the name, creating it if needed **/
+	public static Histogram histogram(String name) {
+		Histogram histogram = sHistograms.get(name);
+		if (histogram == null) {
+			sHistograms.putIfAbsent(name, new Histogram());
+			histogram = sHistograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Sets every metric back to zero. Metrics updated meanwhile may keep part
+	 * of the update.
+	 */
+	public static void reset() {
+		for (Counter counter : sCounters.values())
+			counter.mValue.set(0);
+		for (Gauge gauge : sGauges.values()) {
+			gauge.mValue.set(0);
+			gauge.mMax.set(0);
+		}
+		for (Histogram histogram : sHistograms.values())
+			histogram.clear();
+	}
+
+	/** Writes every metric, sorted by name, one per line **/
+	public static void dump(Writer out) throws IOException {
+		out.write("counters\n");
+		for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(
+				sCounters).entrySet())
+			out.write("  " + entry.getKey() + " " + entry.getValue().get()
+					+ "\n");
+
+		out.write("gauges\n");
+		for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(
+				sGauges).entrySet())
+			out.write("  " + entry.getKey() + " " + entry.getValue().get()
+					+ " max=" + entry.getValue().getMax() + "\n");
+
+		out.write("histograms\n");
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(
+				sHistograms).entrySet()) {
+			Histogram histogram = entry.getValue();
+			out.write("  " + entry.getKey() + " count="
+					+ histogram.getCount() + " mean=" + histogram.getMean()
+					+ " p50<=" + histogram.getPercentile(0.5) + " p90<="
+					+ histogram.getPercentile(0.9) + " p99<="
+					+ histogram.getPercentile(0.99) + " max="
+					+ histogram.getMax() + "\n");
+		}
+	}
+
+	/** Raises the value to at least the given one **/
+	private static void raise(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value))
+				return;
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Date;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Debug screen listing the Metrics and the LatencyTrace report, refreshed
+ * every second. Not reachable from any menu: type SECRET_CODE in the number
+ * pad's send box and press send. Both can be written to a text file to
+ * attach to bug reports.
+ */
+public class MetricsActivity extends Activity {
+
+	public static final String SECRET_CODE = "#metrics";
+	public static final String METRICS_FILE_NAME = "mythmote-metrics.txt";
+
+	public static final int REFRESH_ID = Menu.FIRST;
+	public static final int EXPORT_ID = Menu.FIRST + 1;
+	public static final int RESET_ID = Menu.FIRST + 2;
+
+	private static final long REFRESH_INTERVAL = 1000;
+
+	private final Handler mHandler = new Handler();
+	private TextView mText;
+
+	private final Runnable mRefresh = new Runnable() {
+		public void run() {
+			refresh();
+			mHandler.postDelayed(this, REFRESH_INTERVAL);
+		}
+	};
+
+	/** Called when the activity is first created. */
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		this.setContentView(R.layout.metrics);
+		this.setTitle(R.string.metrics_str);
+		mText = (TextView) this.findViewById(R.id.TextViewMetrics);
+	}
+
+	@Override
+	public void onResume() {
+		super.onResume();
+		mHandler.post(mRefresh);
+	}
+
+	@Override
+	public void onPause() {
+		super.onPause();
+		mHandler.removeCallbacks(mRefresh);
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		boolean result = super.onCreateOptionsMenu(menu);
+		menu.add(0, REFRESH_ID, 0, R.string.refresh_str).setIcon(
+				R.drawable.menu_refresh);
+		menu.add(0, EXPORT_ID, 0, R.string.export_str);
+		menu.add(0, RESET_ID, 0, R.string.reset_str).setIcon(
+				R.drawable.menu_close_clear_cancel);
+		return result;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case REFRESH_ID:
+			refresh();
+			break;
+		case EXPORT_ID:
+			export();
+			break;
+		case RESET_ID:
+			Metrics.reset();
+			LatencyTrace.clear();
+			refresh();
+			break;
+		}
+		return true;
+	}
+
+	private void refresh() {
+		mText.setText(describe());
+	}
+
+	/**
+	 * Writes the metrics file on a background thread, SD cards can be slow
+	 */
+	private void export() {
+		final File file = new File(Environment.getExternalStorageDirectory(),
+				METRICS_FILE_NAME);
+		final String text = describe();
+		new Thread(new Runnable() {
+			public void run() {
+				boolean written = false;
+				Writer out = null;
+				try {
+					out = new FileWriter(file);
+					out.write("mythmote metrics " + new Date() + "\n");
+					out.write(text);
+					written = true;
+				} catch (IOException e) {
+					Log.e(MythMote.LOG_TAG, "Could not write " + file, e);
+				} finally {
+					if (out != null) {
+						try {
+							out.close();
+						} catch (IOException e) {
+							written = false;
+						}
+					}
+				}
+
+				final String message = getString(written ? R.string.saved_to_str
+						: R.string.backup_failed_str, file.getPath());
+				mHandler.post(new Runnable() {
+					public void run() {
+						Toast.makeText(MetricsActivity.this, message,
+								Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}, "MythMote-metrics").start();
+	}
+
+	/**
+	 * Returns the text shown and exported. Called on the UI thread, where the
+	 * latency trace is written.
+	 */
+	private static String describe() {
+		StringWriter out = new StringWriter();
+		out.write("time since boot " + SystemClock.uptimeMillis() + "ms\n");
+		out.write("worker threads " + MythComExecutor.getLiveThreadCount()
+				+ "\n");
+		try {
+			Metrics.dump(out);
+		} catch (IOException e) {
+			// not for a string
+		}
+		out.write(LatencyTrace.report());
+		return out.toString();
+	}
+
+}
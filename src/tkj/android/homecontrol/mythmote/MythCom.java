@@ -16,22 +16,25 @@
 
 package tkj.android.homecontrol.mythmote;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.EventListener;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.app.Activity;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.view.Gravity;
 import android.widget.Toast;
 import android.util.Log;
@@ -44,6 +47,12 @@ public class MythCom {
 		public void StatusChanged(String StatusMsg, int statusCode);
 	}
 
+	public interface QueryCompleteListener extends EventListener {
+
+		/** Called on the UI thread. response is null if the query failed **/
+		public void QueryComplete(String command, String response);
+	}
+
 	public static final int DEFAULT_MYTH_PORT = 6546;
 	public static final int SOCKET_TIMEOUT = 2000;
 	public static final int ENABLE_WIFI = 0;
@@ -52,20 +61,104 @@ public class MythCom {
 	public static final int STATUS_CONNECTED = 1;
 	public static final int STATUS_CONNECTING = 3;
 	public static final int STATUS_ERROR = 99;
+	
+	/** Shortest time between two status deliveries, about one frame **/
+	private static final long STATUS_DELIVERY_INTERVAL = 16;
+	
+	/** Size of the reusable send buffer. Longer commands are sent in chunks **/
+	private static final int SEND_BUFFER_SIZE = 512;
+	private static final CommandFrame FRAME_EXIT = CommandFrame.create("exit");
+	private static final CommandFrame FRAME_QUERY_LOCATION = CommandFrame.create("query location");
+	private static final CommandFrame.Pool sCommandFrames = new CommandFrame.Pool("", 64);
+	private static final CommandFrame.Pool sJumpFrames = new CommandFrame.Pool("jump ", 16);
+	private static final CommandFrame.Pool sKeyFrames = new CommandFrame.Pool("key ", 64);
+	private static final CommandFrame.Pool sPlayFrames = new CommandFrame.Pool("play ", 32);
+	private static final CommandFrame[] sCharKeyFrames = new CommandFrame[128];
 
-	private static Timer _timer;
-	private static Toast _toast;
-	private static Socket _socket;
-	private static BufferedWriter _outputStream;
-	private static BufferedReader  _inputStream;
-	private static Activity _parent;
-	private static ConnectivityManager _conMgr;
-	private static String _status;
-	private static int _statusCode;
-	private static StatusChangedEventListener _statusListener;
-	private static FrontendLocation _frontend;
-
-	private final Handler mHandler = new Handler();
+	// build the frames the app sends itself once, so sending them never
+	// allocates and the tables are only read after class init
+	static {
+		for (char key = ' '; key < 0x7f; key++)
+			sCharKeyFrames[key] = CommandFrame.create("key " + key);
+		sKeyFrames.preload("up", "down", "left", "right", "enter", "escape",
+				"backspace", "tab", "space");
+		sPlayFrames.preload("stop", "speed normal", "speed pause",
+				"seek forward", "seek backward", "channel up", "channel down");
+	}
+	
+	/** Sessions that are currently connected, in any part of the app **/
+	private static final CopyOnWriteArrayList<MythCom> sLiveSessions = new CopyOnWriteArrayList<MythCom>();
+
+	//everything below belongs to this session only. Several MythCom
+	//instances can be connected to different frontends at the same time.
+	private MythComExecutor _executor;
+	private ScheduledFuture<?> _statusPoll;
+	private Toast _toast;
+	private volatile Socket _socket;
+	private volatile SocketChannel _channel;
+	private final ByteBuffer _sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+	/** Frames collected in the send buffer, counted as sent once flushed.
+	 * Guarded by _sendBuffer; every frame takes at least one byte. **/
+	private final CommandFrame[] _batchFrames = new CommandFrame[SEND_BUFFER_SIZE];
+	private int _batchCount;
+	private volatile ResponseReader _reader;
+	/** Replies the frontend owes us for commands that were not queries **/
+	private final AtomicInteger _unreadReplies = new AtomicInteger();
+	/** Only one query may be reading from the socket at a time **/
+	private final Object _queryLock = new Object();
+	private final QueryCache _queryCache = new QueryCache(new QueryCache.Loader()
+	{
+		public String load(String command)
+		{
+			return queryFrontend(CommandFrame.create(command));
+		}
+	});
+	private final Context _parent;
+	private ConnectivityManager _conMgr;
+	private volatile String _status;
+	private volatile int _statusCode;
+	private final CopyOnWriteArrayList<StatusChangedEventListener> _statusListeners =
+		new CopyOnWriteArrayList<StatusChangedEventListener>();
+	private volatile FrontendLocation _frontend;
+	private volatile boolean _reconnectPending;
+	
+	//status waiting to be delivered and the last one listeners were given.
+	//pending values are guarded by _statusLock, delivered ones belong to the UI thread
+	private final Object _statusLock = new Object();
+	private String _pendingStatus;
+	private int _pendingStatusCode;
+	private boolean _statusPosted;
+	private String _deliveredStatus;
+	private int _deliveredStatusCode;
+	private volatile long _lastStatusDelivery;
+
+	/** All results are delivered to the UI thread through this handler **/
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	
+	/** Gives listeners the latest status unless it repeats the last one **/
+	private final Runnable mDeliverStatus = new Runnable()
+	{
+		public void run()
+		{
+			final String status;
+			final int code;
+			synchronized(_statusLock)
+			{
+				status = _pendingStatus;
+				code = _pendingStatusCode;
+				_statusPosted = false;
+			}
+			_status = status;
+			
+			if(code == _deliveredStatusCode && status != null && status.equals(_deliveredStatus))
+				return;
+			_deliveredStatus = status;
+			_deliveredStatusCode = code;
+			_lastStatusDelivery = SystemClock.uptimeMillis();
+			for (StatusChangedEventListener listener : _statusListeners)
+				listener.StatusChanged(status, code);
+		}
+	};
 	private final Runnable mSocketActionComplete = new Runnable()
 	{
 		public void run()
@@ -73,36 +166,145 @@ public class MythCom {
 			setStatus(_status, _statusCode);
 			if(_statusCode!=STATUS_CONNECTING)
 			    _toast.cancel();
+			
+			if(_statusCode==STATUS_CONNECTED)
+				sLiveSessions.addIfAbsent(MythCom.this);
+			else
+				sLiveSessions.remove(MythCom.this);
 		}
 
 	};
 	
-	/** TimerTask that probes the current connection for its mythtv screen.  **/
-	private static TimerTask timerTaskCheckStatus;
+	/** Task that checks a kept session still works and reconnects if not **/
+	private final Runnable mVerifyConnection = new Runnable()
+	{
+		public void run()
+		{
+			if(queryMythScreen() != null)
+			{
+				setStatus(_frontend.Name + " - Connected", STATUS_CONNECTED);
+				return;
+			}
+			
+			//the frontend went away while we were not looking, or stopped
+			//answering; a closed connection was already noticed by the read
+			Log.i(MythMote.LOG_TAG, "Kept session is dead, reconnecting");
+			postReconnect();
+		}
+	};
+	
+	/** Replaces a dead session with a new connection. Runs on the UI thread **/
+	private final Runnable mReconnect = new Runnable()
+	{
+		public void run()
+		{
+			_reconnectPending = false;
+			final FrontendLocation frontend = _frontend;
+			if(frontend == null || IsConnecting())
+				return;
+			Metrics.RECONNECTS.inc();
+			Disconnect();
+			Connect(frontend);
+		}
+	};
+	
+	/** Task that probes the current connection for its mythtv screen.  **/
+	private final Runnable mCheckStatus = new Runnable()
+	{
+		//Run at every poll interval
+		public void run() 
+		{
+			//only if socket is connected
+			if(IsConnected() && !IsConnecting())
+			{
+				//set disconnected status if nothing is returned.
+				if(queryMythScreen() == null)
+				{
+					Metrics.POLL_FAILURE.inc();
+					setStatus("Disconnected", STATUS_DISCONNECTED);
+				}
+				else
+				{
+					Metrics.POLL_SUCCESS.inc();
+					setStatus(_frontend.Name + " - Connected", STATUS_CONNECTED);
+				}
+			}
+		}
+	};
 
 	
-	/** Parent activity is used to get context */
-	public MythCom(Activity parentActivity)
+	/** Context is used to read preferences and show toasts. Each instance
+	 * is an independent session with its own socket and worker. */
+	public MythCom(Context context)
 	{
-		_parent = parentActivity;
+		_parent = context;
 		_statusCode=STATUS_DISCONNECTED;
 	}
 	
+	/** Returns the executor running background work, creating it if needed **/
+	private synchronized MythComExecutor getExecutor()
+	{
+		if(_executor == null || _executor.isShutdown())
+			_executor = new MythComExecutor("session", MythComExecutor.DEFAULT_QUEUE_LIMIT);
+		return _executor;
+	}
+	
 	/** Connects to the given address and port. Any existing connection will be broken first **/
 	public void Connect(FrontendLocation frontend)
 	{
-		//read status update interval preference
-		int updateInterval = _parent.getSharedPreferences(MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID, Context.MODE_PRIVATE)
-		.getInt(MythMotePreferences.PREF_STATUS_UPDATE_INTERVAL, 5000);
+		this.Connect(frontend, getStatusUpdateInterval());
+	}
+	
+	/** Keeps the current session if it is connected, or connecting, to the
+	 * same address and port as the given frontend. Otherwise any existing
+	 * connection is broken and a new one made as Connect() does. A kept
+	 * session is checked on the worker and reconnected if the frontend no
+	 * longer answers. Returns true if the session was kept. **/
+	public boolean ConnectIfChanged(FrontendLocation frontend)
+	{
+		final FrontendLocation current = _frontend;
+		final boolean sameEndpoint = current != null
+			&& current.Port == frontend.Port
+			&& current.Address != null
+			&& current.Address.equals(frontend.Address);
+		
+		//a connect to the same place is already under way
+		if(sameEndpoint && this.IsConnecting())
+			return true;
 		
-		//schedule update timer
-		scheduleUpdateTimer(updateInterval);
+		final Socket socket = _socket;
+		if(!sameEndpoint || !this.IsConnected() || socket == null || socket.isClosed())
+		{
+			if(this.IsConnected() || this.IsConnecting())
+				this.Disconnect();
+			this.Connect(frontend);
+			return false;
+		}
+		
+		//the name may have been edited, and the poll interval changed
+		_frontend = frontend;
+		scheduleStatusPoll(getStatusUpdateInterval());
+		
+		//one query round trip tells us the frontend is still there
+		getExecutor().execute(mVerifyConnection);
+		return true;
+	}
+	
+	/** Connects to the given frontend and polls its status at the given
+	 * interval. An interval of 0 disables the status poll. **/
+	public void Connect(FrontendLocation frontend, int updateInterval)
+	{
+		//schedule status poll
+		scheduleStatusPoll(updateInterval);
 
 		//get connection manager
 		_conMgr = (ConnectivityManager) _parent.getSystemService(Context.CONNECTIVITY_SERVICE);
 
 		// set address and port
 		_frontend = frontend;
+		
+		// cached answers belong to the previous frontend
+		_queryCache.clear();
 
 		//create toast for all to eat and enjoy
 		_toast = Toast.makeText(_parent.getApplicationContext(), R.string.attempting_to_connect_str, Toast.LENGTH_SHORT);
@@ -115,28 +317,119 @@ public class MythCom {
 		this.connectSocket();
 	}
 	
-	/** Closes the socket if it exists and it is already connected **/
+	/** Returns a session that is connected to the given address and port,
+	 * or null if there is none **/
+	public static MythCom GetLiveSession(String address, int port)
+	{
+		for(MythCom session : sLiveSessions)
+		{
+			final FrontendLocation frontend = session._frontend;
+			if(session.IsConnected() && frontend != null
+					&& frontend.Port == port && address.equals(frontend.Address))
+				return session;
+		}
+		return null;
+	}
+	
+	/** Connects to the frontend, sends the sequence, says goodbye and waits
+	 * for the frontend to close the connection so every command has been
+	 * handled. For callers that have no session, such as the home screen
+	 * widget. Blocks, so it must not be called on the UI thread. Returns
+	 * false if the frontend could not be reached. **/
+	public static boolean SendOnce(FrontendLocation frontend, CommandSequence sequence)
+	{
+		final Socket socket = new Socket();
+		try
+		{
+			socket.setTcpNoDelay(true);
+			Metrics.CONNECT_ATTEMPTS.inc();
+			final long start = SystemClock.uptimeMillis();
+			socket.connect(new InetSocketAddress(frontend.Address, frontend.Port), SOCKET_TIMEOUT);
+			Metrics.CONNECT_TIME.record(SystemClock.uptimeMillis() - start);
+			socket.setSoTimeout(SOCKET_TIMEOUT);
+			
+			final WritableByteChannel out = Channels.newChannel(socket.getOutputStream());
+			final ByteBuffer buffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+			final int steps = sequence.getStepCount();
+			for(int step = 0; step < steps; step++)
+			{
+				switch(sequence.getStepType(step))
+				{
+				case CommandSequence.STEP_SEND:
+					for(int i = 0; i < sequence.getArgument(step); i++)
+						sequence.getFrame(step).writeTo(out, buffer);
+					break;
+				case CommandSequence.STEP_WAIT:
+					Thread.sleep(sequence.getArgument(step));
+					break;
+				default:
+					//the frontend answers in order, so the wait for it
+					//to hang up below covers any prompt waits
+					break;
+				}
+			}
+			FRAME_EXIT.writeTo(out, buffer);
+			
+			//read until the frontend hangs up after handling "exit"
+			final InputStream in = socket.getInputStream();
+			final byte[] discard = new byte[256];
+			int count;
+			while((count = in.read(discard)) != -1)
+				Metrics.BYTES_READ.add(count);
+			return true;
+		}
+		catch(java.net.SocketTimeoutException e)
+		{
+			//everything was written, the frontend was just slow to hang up
+			return socket.isConnected();
+		}
+		catch(IOException e)
+		{
+			if(!socket.isConnected())
+				Metrics.CONNECT_FAILURES.inc();
+			Log.e(MythMote.LOG_TAG, "One shot send to " + frontend.Address + " failed", e);
+			return false;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally
+		{
+			try { socket.close(); }
+			catch (IOException e) { }
+		}
+	}
+	
+	/** Closes the socket if it exists and it is already connected.
+	 * Stops the status poll and drops any queued background work. **/
 	public void Disconnect()
 	{
         _statusCode=STATUS_DISCONNECTED;
+        
+        //a reconnect posted before this no longer applies
+        mHandler.removeCallbacks(mReconnect);
+        _reconnectPending = false;
+        sLiveSessions.remove(this);
+        
+        //stop background work for this connection
+        cancelStatusPoll();
+        
 		try
 		{
 			//send exit if connected
 			if(this.IsConnected())
-				this.sendData("exit\n");
+				this.sendFrame(FRAME_EXIT);
 
-			// check if output stream exists
-			if (_outputStream != null) {
-				_outputStream.close();
-				_outputStream = null;
+			// check if channel exists
+			if (_channel != null) {
+				_channel.close();
+				_channel = null;
 			}
 
-			// check if input stream exists
-			if (_inputStream != null) {
-				// close input stream
-				_inputStream.close();
-				_inputStream = null;
-			}
+			// the reader's stream is closed with the channel
+			_reader = null;
 			if(_socket != null)
 			{
 			    if(!_socket.isClosed())
@@ -153,33 +446,149 @@ public class MythCom {
 		}
 	}
 
+	/** Disconnects and ends the background worker thread without waiting
+	 * for it. Called when the owner of this MythCom is destroyed. **/
+	public void Shutdown()
+	{
+		this.Disconnect();
+		
+		MythComExecutor executor;
+		synchronized(this)
+		{
+			executor = _executor;
+			_executor = null;
+		}
+		if(executor != null)
+			executor.shutdown();
+	}
+
+	/** Returns the response to a read-only query such as "query location".
+	 * Fresh answers are served from the session's query cache. Blocks, so
+	 * it must not be called on the UI thread. Returns null on error. **/
+	public String Query(String command) {
+		return _queryCache.get(command);
+	}
+
+	/** Runs Query() on the background worker and delivers the result to the
+	 * listener on the UI thread **/
+	public void Query(final String command, final QueryCompleteListener listener) {
+		boolean queued = getExecutor().execute(new Runnable()
+		{
+			public void run()
+			{
+				final String response = Query(command);
+				mHandler.post(new Runnable()
+				{
+					public void run()
+					{
+						listener.QueryComplete(command, response);
+					}
+				});
+			}
+		});
+		if(!queued)
+			listener.QueryComplete(command, null);
+	}
+
+	/** Streams the response to a query line by line to the handler on the
+	 * background worker, without caching it. The listener is called on the
+	 * UI thread when the response ends; its response is null if the query
+	 * failed and empty otherwise. **/
+	void StreamQuery(final String command, final ResponseReader.LineHandler handler,
+			final QueryCompleteListener listener) {
+		boolean queued = getExecutor().execute(new Runnable()
+		{
+			public void run()
+			{
+				int result = queryFrontend(CommandFrame.create(command), handler);
+				final String response = result == ResponseReader.RESPONSE_TIMEOUT ? null : "";
+				mHandler.post(new Runnable()
+				{
+					public void run()
+					{
+						listener.QueryComplete(command, response);
+					}
+				});
+			}
+		});
+		if(!queued)
+			listener.QueryComplete(command, null);
+	}
+
+	public void SendCommand(CommandFrame frame) {
+		LatencyTrace.mark(LatencyTrace.SEND);
+		// send pre-encoded command data
+		this.sendFrame(frame);
+	}
+
 	public void SendCommand(String jumpPoint) {
 		// send command data
-		this.sendData(String.format("%s\n", jumpPoint));
+		this.sendFrame(sCommandFrames.obtain(jumpPoint));
 	}
 
 	public void SendJumpCommand(String jumpPoint) {
 		// send command data
-		this.sendData(String.format("jump %s\n", jumpPoint));
+		this.sendFrame(sJumpFrames.obtain(jumpPoint));
 	}
 
 	public void SendKey(String key) {
 		// send command data
-		this.sendData(String.format("key %s\n", key));
+		this.sendFrame(sKeyFrames.obtain(key));
 	}
 
 	public void SendKey(char key) {
-		// send command data
-		this.sendData(String.format("key %s\n", key));
+		// printable ASCII keys have a dedicated frame each
+		if(key >= sCharKeyFrames.length || sCharKeyFrames[key] == null)
+		{
+			this.sendFrame(sKeyFrames.obtain(String.valueOf(key)));
+			return;
+		}
+		
+		this.sendFrame(sCharKeyFrames[key]);
 	}
 
 	public void SendPlaybackCmd(String cmd) {
 		// send command data
-		this.sendData(String.format("play %s\n", cmd));
+		this.sendFrame(sPlayFrames.obtain(cmd));
 	}
 
+	/** Runs a multi-step command sequence on the background worker. The
+	 * commands are pipelined: consecutive sends go out in one write without
+	 * waiting for the frontend's replies. Returns false if the sequence
+	 * could not be queued. **/
+	public boolean SendSequence(final CommandSequence sequence) {
+		if(!this.IsConnected())
+			return false;
+
+		return getExecutor().execute(new Runnable()
+		{
+			public void run()
+			{
+				runSequence(sequence);
+			}
+		});
+	}
+
+	/** Replaces all status listeners with the given one **/
 	public void SetOnStatusChangeHandler(StatusChangedEventListener listener) {
-		_statusListener = listener;
+		_statusListeners.clear();
+		if (listener != null)
+			_statusListeners.add(listener);
+		forgetDeliveredStatus();
+	}
+
+	public void AddOnStatusChangeHandler(StatusChangedEventListener listener) {
+		if (_statusListeners.addIfAbsent(listener))
+			forgetDeliveredStatus();
+	}
+
+	public void RemoveOnStatusChangeHandler(StatusChangedEventListener listener) {
+		_statusListeners.remove(listener);
+	}
+
+	/** Returns the frontend this session was last connected to **/
+	public FrontendLocation GetFrontend() {
+		return _frontend;
 	}
 
 	public String GetStatusStr() {
@@ -203,227 +612,438 @@ public class MythCom {
 		if(_statusCode==STATUS_CONNECTING) return true;
 		return false;
 	}
+
+	/** Returns true while a reconnect after a lost connection is pending **/
+	public boolean IsReconnecting()
+	{
+		return _reconnectPending;
+	}
 	
-	/** Connects _socket to _frontend using a separate thread  **/
+	/** Connects _socket to _frontend on the background worker  **/
 	private void connectSocket()
 	{
-		if(_socket==null)
-		    _socket = new Socket();
-		
-		Thread thread = new Thread()
+		getExecutor().execute(mConnect);
+	}
+	
+	/** Task that opens the socket channel and posts the result  **/
+	private final Runnable mConnect = new Runnable()
+	{
+		public void run()
 		{
-			public void run()
+			Metrics.CONNECT_ATTEMPTS.inc();
+			final long start = SystemClock.uptimeMillis();
+			try
 			{
-				try
+				if(_channel==null)
 				{
-					_socket.connect(new InetSocketAddress(_frontend.Address, _frontend.Port));
-					
-					if(_socket.isConnected())
-					{
-					    _outputStream = new BufferedWriter(new OutputStreamWriter(_socket.getOutputStream()));
-					    _inputStream = new BufferedReader(new InputStreamReader(_socket.getInputStream()));
-					}
-					else
-					{
-						_status = "Could not open socket.";
-						_statusCode = STATUS_ERROR;
-					}
-
-					//check if everything was connected OK
-					if(!_socket.isConnected() || _outputStream == null)
-					{
-						_status = "Unknown error getting output stream.";
-						_statusCode = STATUS_ERROR;
-					}
-					else
-					{
-						_status = _frontend.Name + " - Connected";
-						_statusCode = STATUS_CONNECTED;
-					}
-
+					_channel = SocketChannel.open();
+					_socket = _channel.socket();
 				}
-				catch (UnknownHostException e)
+				
+				_channel.connect(new InetSocketAddress(_frontend.Address, _frontend.Port));
+				
+				if(_socket.isConnected())
 				{
-					_status = "Unknown host: " + _frontend.Address;
+				    _reader = new ResponseReader(_socket);
+				    
+				    //the frontend greets us with a banner and a prompt
+				    _unreadReplies.set(1);
+				}
+				else
+				{
+					_status = "Could not open socket.";
 					_statusCode = STATUS_ERROR;
 				}
-				catch (IOException e)
+
+				//check if everything was connected OK
+				if(!_socket.isConnected() || _reader == null)
 				{
-					_status = "IO Except: " + e.getLocalizedMessage() + ": " + _frontend.Address;
+					_status = "Unknown error getting output stream.";
 					_statusCode = STATUS_ERROR;
-					if(_inputStream!=null)
-					{
-						_inputStream=null;
-					}
-					if(_socket!=null)
-					{
-						if(!_socket.isClosed())
-						{
-							try { _socket.close(); } 
-							catch (IOException e1) { }
-							_socket = null;
-						}
-					}
+				}
+				else
+				{
+					_status = _frontend.Name + " - Connected";
+					_statusCode = STATUS_CONNECTED;
 				}
 
-				// post results
-				mHandler.post(mSocketActionComplete);
 			}
-		};
+			catch (UnknownHostException e)
+			{
+				_status = "Unknown host: " + _frontend.Address;
+				_statusCode = STATUS_ERROR;
+			}
+			catch (IOException e)
+			{
+				_status = "IO Except: " + e.getLocalizedMessage() + ": " + _frontend.Address;
+				_statusCode = STATUS_ERROR;
+				_reader = null;
+				if(_channel!=null)
+				{
+					try { _channel.close(); } 
+					catch (IOException e1) { }
+					_channel = null;
+					_socket = null;
+				}
+			}
 
-		// run thread
-		thread.start();
-	}
+			if(_statusCode == STATUS_CONNECTED)
+				Metrics.CONNECT_TIME.record(SystemClock.uptimeMillis() - start);
+			else
+				Metrics.CONNECT_FAILURES.inc();
+			
+			// post results
+			mHandler.post(mSocketActionComplete);
+		}
+	};
 	
-	/** Sends data to the output stream of the socket.
-	 * Attempts to reconnect socket if connection does not already exist. **/
-	private boolean sendData(String data)
+	/** Writes the frame to the socket channel through the reusable send buffer.
+	 * Nothing is allocated on this path once the frame exists. **/
+	private boolean sendFrame(CommandFrame frame)
 	{
-		if(this.IsConnected() && _outputStream != null)
+		final SocketChannel channel = _channel;
+		if(this.IsConnected() && channel != null)
 		{
 			try
 			{
-				if(!data.endsWith("\n")) 
-					data = String.format("%s\n", data);
+				synchronized(_sendBuffer)
+				{
+					LatencyTrace.mark(LatencyTrace.WRITE);
+					frame.writeTo(channel, _sendBuffer);
+					LatencyTrace.mark(LatencyTrace.FLUSH);
+				}
+				_unreadReplies.incrementAndGet();
 				
-				_outputStream.write(data);
-				_outputStream.flush();
+				//answers about the frontend's screen are stale now
+				if(frame.changesState())
+					_queryCache.invalidateState();
 				return true;
 			}
 			catch (IOException e)
 			{
-				e.printStackTrace();
-				this.setStatus(e.getLocalizedMessage() + ": " + _frontend.Address , STATUS_ERROR);
-				this.Disconnect();
+				Log.e(MythMote.LOG_TAG, "IO Error sending " + frame.getCommand(), e);
+				this.connectionLost(e);
 				return false;
 			}
 		}
 		return false;
 	}
 	
-	/** Reads data from the input stream of the socket.
-	 * Returns null if no data in received **/
-	private String readData()
+	/** Runs the steps of the sequence and records when each one finished.
+	 * Called on the background worker. **/
+	private void runSequence(CommandSequence sequence)
 	{
-		String outString = "";
-		if(this.IsConnected() && _inputStream != null )
+		final int count = sequence.getStepCount();
+		final long[] times = new long[count];
+		final long start = SystemClock.uptimeMillis();
+
+		//no query may read replies while a step is sending or waiting for
+		//them; the lock is let go during timed waits so queries can run
+		try
 		{
-			
-			try 
+			int step = 0;
+			while(step < count)
 			{
-				if(_inputStream.ready())
-					outString =_inputStream.readLine() ;
+				switch(sequence.getStepType(step))
+				{
+				case CommandSequence.STEP_SEND:
+					//send every consecutive send step as one batch
+					int end = step;
+					while(end < count && sequence.getStepType(end) == CommandSequence.STEP_SEND)
+						end++;
+					synchronized(_queryLock)
+					{
+						if(!sendBatch(sequence, step, end))
+							return;
+					}
+					long sent = SystemClock.uptimeMillis() - start;
+					while(step < end)
+						times[step++] = sent;
+					continue;
 
-			} 
-			catch (IOException e) 
-			{
-				Log.e(MythMote.LOG_TAG, "IO Error reading data", e);
-				this.setStatus(e.getLocalizedMessage() + ": " + _frontend.Address , STATUS_ERROR);
-				this.Disconnect();
-				return null;
+				case CommandSequence.STEP_WAIT:
+					Thread.sleep(sequence.getArgument(step));
+					break;
+
+				case CommandSequence.STEP_WAIT_PROMPT:
+					synchronized(_queryLock)
+					{
+						//replies a query read meanwhile are no longer owed
+						final ResponseReader reader = _reader;
+						if(reader == null)
+							return;
+						_unreadReplies.addAndGet(reader.skipResponses(
+								_unreadReplies.getAndSet(0), SOCKET_TIMEOUT));
+					}
+					break;
+				}
+				times[step++] = SystemClock.uptimeMillis() - start;
 			}
 		}
-		
-		if(outString!="")
-			return outString;
-		else
+		catch (InterruptedException e)
 		{
-			Log.e(MythMote.LOG_TAG, "Null outstring");
-			return null;
+			//the session is shutting down
+			Thread.currentThread().interrupt();
+			return;
+		}
+		catch (IOException e)
+		{
+			Log.e(MythMote.LOG_TAG, "IO Error running command sequence", e);
+			this.connectionLost(e);
+			return;
+		}
+		finally
+		{
+			sequence.setLastStepTimes(times);
 		}
 	}
-	
-	/** Sets _status and fires the StatusChanged event **/
-	private void setStatus(final String StatusMsg, final int code)
+
+	/** Writes the send steps from first up to (not including) end through the
+	 * send buffer, filling it before each write. Returns false if the
+	 * commands could not be sent. **/
+	private boolean sendBatch(CommandSequence sequence, int first, int end) throws IOException
 	{
-		_parent.runOnUiThread(new Runnable(){
+		final SocketChannel channel = _channel;
+		if(!this.IsConnected() || channel == null)
+			return false;
 
-			public void run() 
+		int frames = 0;
+		boolean changesState = false;
+		synchronized(_sendBuffer)
+		{
+			_sendBuffer.clear();
+			_batchCount = 0;
+			for(int step = first; step < end; step++)
 			{
-				_status = StatusMsg;
-				if (_statusListener != null)
-					_statusListener.StatusChanged(StatusMsg, code);
+				final CommandFrame frame = sequence.getFrame(step);
+				for(int repeat = sequence.getArgument(step); repeat > 0; repeat--)
+				{
+					if(!frame.putInto(_sendBuffer))
+					{
+						flushSendBuffer(channel);
+						if(!frame.putInto(_sendBuffer))
+						{
+							//larger than the whole buffer
+							frame.writeTo(channel, _sendBuffer);
+							_sendBuffer.clear();
+							frames++;
+							continue;
+						}
+					}
+					_batchFrames[_batchCount++] = frame;
+					frames++;
+				}
+				changesState |= frame.changesState();
 			}
+			flushSendBuffer(channel);
+		}
+		_unreadReplies.addAndGet(frames);
+
+		if(changesState)
+			_queryCache.invalidateState();
+		return true;
+	}
+
+	/** Writes out whatever has been collected in the send buffer and
+	 * counts the frames in it as sent once the channel has taken them **/
+	private void flushSendBuffer(SocketChannel channel) throws IOException
+	{
+		_sendBuffer.flip();
+		while(_sendBuffer.hasRemaining())
+			channel.write(_sendBuffer);
+		_sendBuffer.clear();
+		
+		for(int i = 0; i < _batchCount; i++)
+		{
+			_batchFrames[i].countSent();
+			_batchFrames[i] = null;
+		}
+		_batchCount = 0;
+	}
 
+	/** Sends the query and collects its response, one line per row.
+	 * Returns null on error or timeout **/
+	private String queryFrontend(CommandFrame frame)
+	{
+		final StringBuilder response = new StringBuilder();
+		int result = queryFrontend(frame, new ResponseReader.LineHandler()
+		{
+			public boolean onLine(String line)
+			{
+				if(response.length() > 0)
+					response.append('\n');
+				response.append(line);
+				return true;
+			}
 		});
+		return result == ResponseReader.RESPONSE_COMPLETE ? response.toString() : null;
 	}
 	
-	/** Returns the string representation of the current mythfrontend
-	 * screen location. Returns null on error **/
-	private String queryMythScreen()
+	/** Sends the query frame and passes each line of the response to the
+	 * handler as it arrives. Returns one of the ResponseReader.RESPONSE_
+	 * results; errors are reported as RESPONSE_TIMEOUT **/
+	private int queryFrontend(CommandFrame frame, ResponseReader.LineHandler handler)
 	{
-
-		if(this.sendData("query location"))
+		if(!this.IsConnected())
+			return ResponseReader.RESPONSE_TIMEOUT;
+		
+		synchronized(_queryLock)
 		{
-		    if(this.IsConnected())
-		    	return this.readData();
-		    else
-		    {
-				Log.e(MythMote.LOG_TAG, _status + ": Not connected on receive");
-				return null;
-		    }
+			final ResponseReader reader = _reader;
+			if(reader == null)
+				return ResponseReader.RESPONSE_TIMEOUT;
+			
+			try
+			{
+				//throw away replies to commands sent since the last query, and
+				//the rest of an abandoned stream, up to their prompts. One still
+				//missing would be taken for this query's response.
+				int missing = reader.skipResponses(_unreadReplies.getAndSet(0), SOCKET_TIMEOUT);
+				if(missing > 0)
+				{
+					_unreadReplies.addAndGet(missing);
+					Log.w(MythMote.LOG_TAG, missing + " replies missing, query not sent");
+					return ResponseReader.RESPONSE_TIMEOUT;
+				}
+				
+				if(!this.sendFrame(frame))
+				{
+					Log.e(MythMote.LOG_TAG, _status + ": Send failed");
+					return ResponseReader.RESPONSE_TIMEOUT;
+				}
+				_unreadReplies.decrementAndGet();
+				
+				int result = reader.readResponse(handler, SOCKET_TIMEOUT);
+				
+				//the rest of a response we stopped reading is skipped later
+				if(result != ResponseReader.RESPONSE_COMPLETE)
+					_unreadReplies.incrementAndGet();
+				return result;
+			}
+			catch (IOException e) 
+			{
+				Log.e(MythMote.LOG_TAG, "IO Error reading data", e);
+				this.connectionLost(e);
+				return ResponseReader.RESPONSE_TIMEOUT;
+			}
 		}
-		else
+	}
+	
+	/** Drops a connection that failed with an I/O error. If the frontend
+	 * closed it or it broke, rather than being closed here, a reconnect is
+	 * posted before the error status so listeners know it is not final. **/
+	private void connectionLost(IOException e)
+	{
+		final FrontendLocation frontend = _frontend;
+		final SocketChannel channel = _channel;
+		final boolean closedHere = channel == null || !channel.isOpen();
+		
+		this.Disconnect();
+		
+		//pending before the error is seen, posted after it so the
+		//reconnect's status is the one that stays
+		final boolean reconnect = !closedHere && frontend != null && markReconnect();
+		this.setStatus(e.getLocalizedMessage() + ": " + (frontend != null ? frontend.Address : ""), STATUS_ERROR);
+		if(reconnect)
+			mHandler.post(mReconnect);
+	}
+	
+	/** Posts one reconnect to the UI thread unless one is already pending **/
+	private void postReconnect()
+	{
+		if(markReconnect())
+			mHandler.post(mReconnect);
+	}
+	
+	/** Marks a reconnect pending. Returns false if one already was. **/
+	private synchronized boolean markReconnect()
+	{
+		if(_reconnectPending)
+			return false;
+		_reconnectPending = true;
+		return true;
+	}
+	
+	/** Sets _status and fires the StatusChanged event on the UI thread.
+	 * Updates arriving within one frame of each other are coalesced into
+	 * one delivery of the latest, and a status equal to the last one
+	 * delivered is dropped. Nothing is allocated here. **/
+	private void setStatus(final String StatusMsg, final int code)
+	{
+		synchronized(_statusLock)
 		{
-			Log.e(MythMote.LOG_TAG, _status + ": Send failed");
-			return null;
+			_pendingStatus = StatusMsg;
+			_pendingStatusCode = code;
+			if(_statusPosted)
+				return;
+			_statusPosted = true;
 		}
-
+		mHandler.postAtTime(mDeliverStatus, _lastStatusDelivery + STATUS_DELIVERY_INTERVAL);
 	}
 	
-	/** Creates the update timer and schedules it for the given interval.
-	 * If the timer already exists it is destroyed and recreated. */
-	private void scheduleUpdateTimer(int updateInterval)
+	/** Makes the next status reach listeners even if it is unchanged, so a
+	 * newly added listener learns the current state **/
+	private void forgetDeliveredStatus()
 	{
-		try
+		mHandler.post(new Runnable()
 		{
-			//close down the existing timer.
-			if(_timer != null)
-			{
-				_timer.cancel();
-				_timer.purge();
-				_timer = null;
-			}
-			
-			//clear timer task
-			if(timerTaskCheckStatus != null)
+			public void run()
 			{
-				timerTaskCheckStatus.cancel();
-				timerTaskCheckStatus = null;
+				_deliveredStatus = null;
 			}
+		});
+	}
+	
+	/** Returns the string representation of the current mythfrontend
+	 * screen location. Always asks the frontend and refreshes the cached
+	 * answer. Returns null on error **/
+	private String queryMythScreen()
+	{
+		String location = queryFrontend(FRAME_QUERY_LOCATION);
+		if(location != null)
+			_queryCache.put(FRAME_QUERY_LOCATION.getCommand(), location);
+		return location;
+	}
+	
+	/** Reads the status update interval preference **/
+	private int getStatusUpdateInterval()
+	{
+		return _parent.getSharedPreferences(MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID, Context.MODE_PRIVATE)
+			.getInt(MythMotePreferences.PREF_STATUS_UPDATE_INTERVAL, 5000);
+	}
+	
+	/** Schedules the status poll on the background worker at the given interval.
+	 * Any existing poll is cancelled first. */
+	private void scheduleStatusPoll(int updateInterval)
+	{
+		try
+		{
+			//stop the existing poll
+			cancelStatusPoll();
 
-			//(re)schedule the update timer
+			//(re)schedule the status poll
 			if(updateInterval > 0)
 			{
-				//create timer task
-				timerTaskCheckStatus = new TimerTask()
-				{
-					//Run at every timer tick
-					public void run() 
-					{
-						//only if socket is connected
-						if(IsConnected() && !IsConnecting())
-						{
-							//set disconnected status if nothing is returned.
-							if(queryMythScreen() == null)
-							{
-								setStatus("Disconnected", STATUS_DISCONNECTED);
-							}
-							else
-							{
-								setStatus(_frontend.Name + " - Connected", STATUS_CONNECTED);
-							}
-						}
-					}
-				};
-					
-				_timer = new Timer();
-				_timer.schedule(timerTaskCheckStatus, updateInterval, updateInterval);
+				_statusPoll = getExecutor().scheduleAtFixedRate(mCheckStatus, updateInterval);
 			}
 		}
 		catch(Exception ex)
 		{
-			Log.e(MythMote.LOG_TAG, "Error scheduling status update timer.", ex);
+			Log.e(MythMote.LOG_TAG, "Error scheduling status update poll.", ex);
+		}
+	}
+	
+	/** Cancels the status poll if one is scheduled **/
+	private void cancelStatusPoll()
+	{
+		if(_statusPoll != null)
+		{
+			_statusPoll.cancel(false);
+			_statusPoll = null;
+			
+			MythComExecutor executor = _executor;
+			if(executor != null)
+				executor.purge();
 		}
 	}
 	
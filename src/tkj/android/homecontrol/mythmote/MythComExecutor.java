@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Runs all background work of a MythCom (connects, status polls) on one named
+ * worker thread. The worker lives until shutdown() is called, so connecting
+ * and rescheduling the status poll no longer create threads.
+ */
+public class MythComExecutor {
+
+	/** Maximum number of tasks that may wait for the worker **/
+	public static final int DEFAULT_QUEUE_LIMIT = 16;
+
+	private static final AtomicInteger sLiveThreads = new AtomicInteger();
+	private static final AtomicInteger sThreadNumber = new AtomicInteger();
+
+	private final ScheduledThreadPoolExecutor mExecutor;
+	private final int mQueueLimit;
+	/** Tasks handed to execute() that have not started running yet **/
+	private final AtomicInteger mPending = new AtomicInteger();
+
+	public MythComExecutor(final String name, int queueLimit) {
+		mQueueLimit = queueLimit;
+		mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						sLiveThreads.incrementAndGet();
+						try {
+							r.run();
+						} finally {
+							sLiveThreads.decrementAndGet();
+						}
+					}
+				}, "MythCom-" + name + "-" + sThreadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues the task for the worker. Returns false if the queue is full or
+	 * the executor has been shut down. The limit counts tasks taken here
+	 * that have not started yet, reserved before queueing so concurrent
+	 * callers cannot overshoot it.
+	 */
+	public boolean execute(final Runnable task) {
+		int pending;
+		do {
+			pending = mPending.get();
+			if (pending >= mQueueLimit) {
+				Log.w(MythMote.LOG_TAG, "MythCom work queue full, dropping task");
+				Metrics.QUEUE_DROPPED.inc();
+				return false;
+			}
+		} while (!mPending.compareAndSet(pending, pending + 1));
+
+		try {
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					// the gauge follows the queue down as well as up
+					Metrics.QUEUE_DEPTH.set(mPending.decrementAndGet());
+					task.run();
+				}
+			});
+			Metrics.QUEUE_DEPTH.set(mPending.get());
+			return true;
+		} catch (RejectedExecutionException e) {
+			Metrics.QUEUE_DEPTH.set(mPending.decrementAndGet());
+			return false;
+		}
+	}
+
+	/**
+	 * Runs the task repeatedly at the given interval. Returns null if the
+	 * executor has been shut down.
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable task,
+			long interval) {
+		try {
+			return mExecutor.scheduleAtFixedRate(task, interval, interval,
+					TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+
+	/** Removes cancelled tasks from the queue **/
+	public void purge() {
+		mExecutor.purge();
+	}
+
+	/** Returns the number of tasks waiting for the worker **/
+	public int getQueueDepth() {
+		return mPending.get();
+	}
+
+	public boolean isShutdown() {
+		return mExecutor.isShutdown();
+	}
+
+	/**
+	 * Stops accepting work, drops queued tasks and interrupts the running
+	 * one. Does not wait for the worker, so it is safe on the UI thread; an
+	 * interrupt closes any socket channel the worker is blocked on.
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+		mPending.set(0);
+		Metrics.QUEUE_DEPTH.set(0);
+	}
+
+	/** Returns the number of MythCom worker threads currently alive **/
+	public static int getLiveThreadCount() {
+		return sLiveThreads.get();
+	}
+
+}
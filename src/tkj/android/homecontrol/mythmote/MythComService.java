@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.lang.reflect.Method;
+
+import tkj.android.homecontrol.mythmote.db.MythMoteDbManager;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager.MythKey;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.IBinder;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+/**
+ * Owns the session with the selected frontend, and with it the socket and
+ * the status poll, so they outlive MythMote being paused or destroyed.
+ * While the session is up the service runs in the foreground with a
+ * notification showing the status and transport controls that send through
+ * the same socket. The service stops itself when it is asked to disconnect
+ * or when connecting fails; a lost connection is reconnected first.
+ *
+ * Clients get the session object from getSession() and ask for connects
+ * with connect(), so they can use the session as soon as they are created.
+ */
+public class MythComService extends Service implements
+		MythCom.StatusChangedEventListener {
+
+	public static final String ACTION_CONNECT = "tkj.android.homecontrol.mythmote.session.CONNECT";
+	public static final String ACTION_SEND = "tkj.android.homecontrol.mythmote.session.SEND";
+	public static final String ACTION_STOP = "tkj.android.homecontrol.mythmote.session.STOP";
+	public static final String EXTRA_KEY = "key";
+
+	private static final int NOTIFICATION_ID = 1;
+
+	private static final int[] TRANSPORT_IDS = { R.id.NotificationRewind,
+			R.id.NotificationPlay, R.id.NotificationPause,
+			R.id.NotificationFastForward };
+	private static final MythKey[] TRANSPORT_KEYS = { MythKey.BUTTON_REWIND,
+			MythKey.BUTTON_PLAY, MythKey.BUTTON_PAUSE,
+			MythKey.BUTTON_FAST_FORWARD };
+
+	private static final Class<?>[] START_FOREGROUND_SIGNATURE = new Class[] {
+			int.class, Notification.class };
+	private static final Class<?>[] STOP_FOREGROUND_SIGNATURE = new Class[] { boolean.class };
+
+	/** The session shared by every client in the process **/
+	private static MythCom sSession;
+
+	private NotificationManager mNotificationManager;
+	private Notification mNotification;
+	private Method mStartForeground;
+	private Method mStopForeground;
+	private boolean mForeground = false;
+	private int mLastStartId;
+
+	/**
+	 * Returns the process wide session. It is created on first use but only
+	 * connected through connect().
+	 */
+	public static synchronized MythCom getSession(Context context) {
+		if (sSession == null)
+			sSession = new MythCom(context.getApplicationContext());
+		return sSession;
+	}
+
+	/**
+	 * Asks the service to connect the session to the frontend. A session
+	 * already connected to the same address and port is kept.
+	 */
+	public static void connect(Context context, FrontendLocation location) {
+		Intent intent = new Intent(context, MythComService.class);
+		intent.setAction(ACTION_CONNECT);
+		intent.putExtra(FrontendLocation.STR_ID, location.ID);
+		intent.putExtra(FrontendLocation.STR_NAME, location.Name);
+		intent.putExtra(FrontendLocation.STR_ADDRESS, location.Address);
+		intent.putExtra(FrontendLocation.STR_PORT, location.Port);
+		context.startService(intent);
+	}
+
+	/** Disconnects the session and stops the service **/
+	public static void stop(Context context) {
+		Intent intent = new Intent(context, MythComService.class);
+		intent.setAction(ACTION_STOP);
+		context.startService(intent);
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mNotificationManager = (NotificationManager) this
+				.getSystemService(NOTIFICATION_SERVICE);
+
+		// startForeground() only exists from Android 2.0
+		try {
+			mStartForeground = this.getClass().getMethod("startForeground",
+					START_FOREGROUND_SIGNATURE);
+			mStopForeground = this.getClass().getMethod("stopForeground",
+					STOP_FOREGROUND_SIGNATURE);
+		} catch (NoSuchMethodException e) {
+			// older platform, fall back to setForeground()
+			mStartForeground = mStopForeground = null;
+		}
+
+		getSession(this).AddOnStatusChangeHandler(this);
+	}
+
+	@Override
+	public void onStart(Intent intent, int startId) {
+		super.onStart(intent, startId);
+		mLastStartId = startId;
+		final String action = intent != null ? intent.getAction() : null;
+
+		if (ACTION_CONNECT.equals(action)) {
+			FrontendLocation location = new FrontendLocation();
+			location.ID = intent.getIntExtra(FrontendLocation.STR_ID, -1);
+			location.Name = intent.getStringExtra(FrontendLocation.STR_NAME);
+			location.Address = intent
+					.getStringExtra(FrontendLocation.STR_ADDRESS);
+			location.Port = intent.getIntExtra(FrontendLocation.STR_PORT,
+					location.Port);
+			if (getSession(this).ConnectIfChanged(location))
+				showNotification(getSession(this).GetStatusStr());
+		} else if (ACTION_SEND.equals(action)) {
+			// a press while the session is down leaves a running service be
+			if (!send(MythKey.getByName(intent.getStringExtra(EXTRA_KEY)))
+					&& !mForeground)
+				this.stopSelf(startId);
+		} else if (ACTION_STOP.equals(action)) {
+			getSession(this).Disconnect();
+			this.stopSelf(startId);
+		} else if (!getSession(this).IsConnected()
+				&& !getSession(this).IsConnecting()) {
+			// restarted with nothing to do
+			this.stopSelf(startId);
+		}
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		final MythCom session = getSession(this);
+		session.RemoveOnStatusChangeHandler(this);
+
+		// the session object and its idle worker stay for clients still
+		// holding it, the socket goes with the service. Disconnect() only
+		// closes the channel, so it is safe on the main thread.
+		if (session.IsConnected() || session.IsConnecting()
+				|| session.IsReconnecting())
+			session.Disconnect();
+		stopForegroundCompat();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		// clients use getSession() and the intents above
+		return null;
+	}
+
+	/**
+	 * Called when the session's status changes. Keeps the notification up
+	 * to date and stops the service once connecting has failed. Errors the
+	 * session is reconnecting from, failed sends and missed polls leave it
+	 * running.
+	 */
+	public void StatusChanged(String StatusMsg, int statusCode) {
+		final MythCom session = getSession(this);
+		if (statusCode == MythCom.STATUS_CONNECTED
+				|| statusCode == MythCom.STATUS_CONNECTING
+				|| session.IsReconnecting()) {
+			showNotification(StatusMsg);
+		} else if (statusCode == MythCom.STATUS_ERROR) {
+			// a connect asked for since then keeps the service running
+			stopForegroundCompat();
+			this.stopSelf(mLastStartId);
+		} else if (mForeground) {
+			showNotification(StatusMsg);
+		}
+	}
+
+	/**
+	 * Sends the command bound to the key for the connected frontend, or the
+	 * key's default command. Returns false if there is no connection.
+	 */
+	private boolean send(MythKey key) {
+		final MythCom session = getSession(this);
+		if (!session.IsConnected()) {
+			Log.w(MythMote.LOG_TAG, "Notification " + key
+					+ " pressed while not connected");
+			return false;
+		}
+
+		final FrontendLocation frontend = session.GetFrontend();
+		KeyBindingEntry entry = MythMoteDbManager.getCachedKeyBinding(key,
+				frontend != null ? frontend.ID : -1);
+		if (entry == null || entry.requiresConfirmation())
+			session.SendCommand(key.getDefaultCommand());
+		else if (entry.getSequence() != null)
+			session.SendSequence(entry.getSequence());
+		else
+			session.SendCommand(entry.getFrame());
+		return true;
+	}
+
+	private void showNotification(String status) {
+		if (mNotification == null) {
+			mNotification = new Notification(R.drawable.mythmote, null, System
+					.currentTimeMillis());
+			mNotification.flags |= Notification.FLAG_ONGOING_EVENT
+					| Notification.FLAG_NO_CLEAR;
+			mNotification.contentIntent = PendingIntent.getActivity(this, 0,
+					new Intent(this, MythMote.class), 0);
+		}
+
+		// transport buttons only take presses from Android 3.0 on, older
+		// platforms open MythMote when the notification is touched
+		RemoteViews views = new RemoteViews(getPackageName(),
+				R.layout.notification);
+		views.setTextViewText(R.id.NotificationStatus, status);
+		for (int i = 0; i < TRANSPORT_IDS.length; i++)
+			views.setOnClickPendingIntent(TRANSPORT_IDS[i],
+					sendIntent(TRANSPORT_KEYS[i]));
+		Intent stop = new Intent(this, MythComService.class);
+		stop.setAction(ACTION_STOP);
+		views.setOnClickPendingIntent(R.id.NotificationStop, PendingIntent
+				.getService(this, 0, stop, 0));
+		mNotification.contentView = views;
+
+		if (mForeground) {
+			mNotificationManager.notify(NOTIFICATION_ID, mNotification);
+			return;
+		}
+		mForeground = true;
+		if (mStartForeground != null) {
+			invoke(mStartForeground, Integer.valueOf(NOTIFICATION_ID),
+					mNotification);
+		} else {
+			this.setForeground(true);
+			mNotificationManager.notify(NOTIFICATION_ID, mNotification);
+		}
+	}
+
+	private void stopForegroundCompat() {
+		if (!mForeground)
+			return;
+		mForeground = false;
+		if (mStopForeground != null) {
+			invoke(mStopForeground, Boolean.TRUE);
+		} else {
+			mNotificationManager.cancel(NOTIFICATION_ID);
+			this.setForeground(false);
+		}
+	}
+
+	private PendingIntent sendIntent(MythKey key) {
+		Intent intent = new Intent(this, MythComService.class);
+		intent.setAction(ACTION_SEND);
+		intent.setData(Uri.parse("mythmote://session/" + key.name()));
+		intent.putExtra(EXTRA_KEY, key.name());
+		return PendingIntent.getService(this, 0, intent,
+				PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	private void invoke(Method method, Object... args) {
+		try {
+			method.invoke(this, args);
+		} catch (Exception e) {
+			Log.w(MythMote.LOG_TAG, "Could not call " + method.getName(), e);
+		}
+	}
+
+}
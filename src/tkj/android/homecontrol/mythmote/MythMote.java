@@ -16,9 +16,10 @@
 
 package tkj.android.homecontrol.mythmote;
 
+import java.util.HashMap;
+
 import tkj.android.homecontrol.mythmote.LocationChangedEventListener;
-import tkj.android.homecontrol.mythmote.db.MythMoteDbHelper;
-import tkj.android.homecontrol.mythmote.db.MythMoteDbManager;
+import tkj.android.homecontrol.mythmote.db.MythMoteRepository;
 import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
 import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager;
 import tkj.android.homecontrol.mythmote.keymanager.KeyMapBinder;
@@ -27,10 +28,12 @@ import android.app.TabActivity;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
-import android.database.Cursor;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.TabHost;
 import android.widget.TabHost.OnTabChangeListener;
@@ -40,7 +43,9 @@ import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.View.OnClickListener;
+import android.view.ViewTreeObserver;
 
 public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 		OnTabChangeListener, LocationChangedEventListener,
@@ -49,9 +54,13 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 	public static final int SETTINGS_ID = Menu.FIRST;
 	public static final int RECONNECT_ID = Menu.FIRST + 1;
 	public static final int SELECTLOCATION_ID = Menu.FIRST + 2;
+	public static final int RECORDINGS_ID = Menu.FIRST + 3;
+	public static final int CHANNELS_ID = Menu.FIRST + 4;
+	public static final int DISCONNECT_ID = Menu.FIRST + 5;
 	public static final String NAME_NAV_TAB = "TabNavigation";
 	public static final String NAME_MEDIA_TAB = "TabNMediaControl";
 	public static final String NAME_NUMPAD_TAB = "TabNumberPad";
+	public static final String NAME_GESTURE_TAB = "TabGesturePad";
 	public static final String LOG_TAG = "MythMote";
 
 	private static final String KEY_VOLUME_DOWN = "[";
@@ -60,16 +69,24 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 	private KeyBindingManager mKeyManager;
 
 	private static TabHost sTabHost;
-	private static MythCom sComm;
-	private static FrontendLocation sLocation = new FrontendLocation();
-	private static int sSelected = -1;
+	private MythCom mComm;
+	private ChannelEntry mChannelEntry;
+	private KeyStreamSender mKeyStream;
+	private FrontendLocation mLocation = new FrontendLocation();
+	private int mSelected = -1;
+	private int mLocationRequest = 0;
+	private MythMoteRepository mRepository;
 	private static boolean sIsScreenLarge = false;
 
+	/** Inflated tab content keyed by tab tag and orientation **/
+	private final HashMap<String, View> mTabViews = new HashMap<String, View>();
+
 	/**
 	 * Called when the activity is first created.
 	 */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
+		StartupTrace.begin();
 		super.onCreate(savedInstanceState);
 		this.setContentView(R.layout.main);
 
@@ -77,14 +94,18 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 		sIsScreenLarge = this.getResources().getString(R.string.screensize)
 				.equals("large");
 
-		if (sComm == null) {
-			// create comm class
-			sComm = new MythCom(this);
-		}
-		// set status changed event handler
-		sComm.SetOnStatusChangeHandler(this);
+		// all database work happens in the background
+		mRepository = new MythMoteRepository(this);
+		mRepository.open();
+
+		// the session belongs to MythComService so it outlives this activity
+		mComm = MythComService.getSession(this);
 
-		// create tab UI
+		// add status changed event handler
+		mComm.AddOnStatusChangeHandler(this);
+
+		// create tab UI. Only the first tab's content is inflated now, the
+		// tab host asks createTabContent() for the others when first shown
 		sTabHost = getTabHost();
 
 		// create tabs
@@ -95,10 +116,26 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 
 		// set navigation tab and setup events
 		sTabHost.setCurrentTab(0);
-
-		// create key manager and load keys from DB
-		mKeyManager = new KeyBindingManager(this, this, sComm);
-		mKeyManager.loadKeys();
+		StartupTrace.mark(StartupTrace.FIRST_TAB);
+
+		// create key manager. Keys are loaded in onResume() after the
+		// selected location is requested, so connecting does not wait on
+		// reading the bindings
+		mKeyManager = new KeyBindingManager(this, this, mComm);
+		mChannelEntry = new ChannelEntry(mComm);
+		mKeyManager.setChannelEntry(mChannelEntry);
+		mKeyStream = new KeyStreamSender(mComm);
+
+		// note when the first frame is drawn
+		final ViewTreeObserver observer = sTabHost.getViewTreeObserver();
+		observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+			public boolean onPreDraw() {
+				if (observer.isAlive())
+					observer.removeOnPreDrawListener(this);
+				StartupTrace.mark(StartupTrace.FIRST_FRAME);
+				return true;
+			}
+		});
 	}
 
 	/**
@@ -108,18 +145,17 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 	public void onResume() {
 		super.onResume();
 
-		//Here we disconnect if connected because the selected location
-		//may have changed from the preference activity. setSelectedLocation() will also trigger 
-		//loading any other changed preferences
-		
-		// disconnect if connected
-		if (sComm != null && (sComm.IsConnected() || sComm.IsConnecting())) {
-			// force disconnected state
-			sComm.Disconnect();
-		}
+		//The selected location may have changed from the preference activity.
+		//setSelectedLocation() keeps the session if it still points at the
+		//same address and port, and will also trigger loading any other
+		//changed preferences
 
-		// set selected location and connect
+		// set selected location and connect if needed
 		this.setSelectedLocation();
+
+		// queued after the location request so connecting never waits on
+		// them. Also picks up bindings imported or reset while paused
+		mKeyManager.loadKeys();
 	}
 
 	/**
@@ -128,6 +164,12 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 	@Override
 	public void onPause() {
 		super.onPause();
+
+		// do not tune a half entered channel later
+		mChannelEntry.clear();
+
+		// nor keep scrolling once we are gone
+		mKeyStream.cancel();
 	}
 
 	/**
@@ -136,10 +178,14 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 	public void onDestroy() {
 		super.onDestroy();
 
-		if (sComm != null && sComm.IsConnected())
-			sComm.Disconnect();
+		// the service keeps the session connected, just stop listening
+		if (mComm != null)
+			mComm.RemoveOnStatusChangeHandler(this);
 		sTabHost = null;
 
+		// never connected, stop tracing this start
+		StartupTrace.end();
+
 	}
 
 	/**
@@ -163,7 +209,8 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 		// clear all tabs
 		sTabHost.clearAllTabs();
 
-		// create tabs
+		// create tabs. Content inflated before for this orientation is
+		// reused, along with the key listeners already set on it
 		this.createTabs();
 
 		// set current tab back
@@ -178,10 +225,10 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 	public boolean onKeyDown(int keyCode, KeyEvent event) {
 		switch (keyCode) {
 		case KeyEvent.KEYCODE_VOLUME_DOWN:
-			sComm.SendKey(KEY_VOLUME_DOWN);
+			mComm.SendKey(KEY_VOLUME_DOWN);
 			return true;
 		case KeyEvent.KEYCODE_VOLUME_UP:
-			sComm.SendKey(KEY_VOLUME_UP);
+			mComm.SendKey(KEY_VOLUME_UP);
 			return true;
 		default:
 			return super.onKeyDown(keyCode, event);
@@ -205,10 +252,22 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 		menu.add(0, RECONNECT_ID, 0, R.string.reconnect_str).setIcon(
 				R.drawable.menu_refresh);
 
+		// create disconnect menu item
+		menu.add(0, DISCONNECT_ID, 0, R.string.disconnect_str).setIcon(
+				R.drawable.cancel);
+
 		// create select location menu item
 		menu.add(0, SELECTLOCATION_ID, 0, R.string.selected_location_str)
 				.setIcon(R.drawable.selected_location);
 
+		// create recordings browser menu item
+		menu.add(0, RECORDINGS_ID, 0, R.string.recordings_str).setIcon(
+				R.drawable.media);
+
+		// create channel search menu item
+		menu.add(0, CHANNELS_ID, 0, R.string.channels_str).setIcon(
+				R.drawable.guide);
+
 		// return results
 		return result;
 	}
@@ -230,11 +289,17 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 				break;
 
 			case RECONNECT_ID:
-				if (sComm.IsConnected())
-					sComm.Disconnect();
+				if (mComm.IsConnected())
+					mComm.Disconnect();
+
+				this.setSelectedLocation();
+				break;
 
-				if (this.setSelectedLocation())
-					sComm.Connect(sLocation);
+			case DISCONNECT_ID:
+				// drop the session and its notification until next resume
+				MythComService.stop(this);
+				this.StatusChanged(this.getString(R.string.disconnect_str),
+						MythCom.STATUS_DISCONNECTED);
 				break;
 
 			case SELECTLOCATION_ID:
@@ -244,6 +309,16 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 				// even if the user selects the same location already selected.
 				MythMotePreferences.SelectLocation(this, this);
 				break;
+
+			case RECORDINGS_ID:
+				// browse and play recordings on the selected frontend
+				this.startActivity(new Intent(this, RecordingsBrowser.class));
+				break;
+
+			case CHANNELS_ID:
+				// search the selected frontend's channels
+				this.startActivity(new Intent(this, ChannelSearch.class));
+				break;
 			}
 			;
 		} catch (android.content.ActivityNotFoundException ex) {
@@ -267,14 +342,44 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 		// setup the media tab's send keyboard input button
 		if (sTabHost.getCurrentTabTag().equals(NAME_NUMPAD_TAB)) {
 			setupSendKeyboardInputButton();
+			setupChannelEntryCheckBox();
+		} else {
+			mChannelEntry.clear();
 		}
+
+		// the touch pad only sends while it is showing
+		final GesturePadView gesturePad = (GesturePadView) this
+				.findViewById(R.id.GesturePad);
+		if (gesturePad != null)
+			gesturePad.setSender(sTabHost.getCurrentTabTag().equals(
+					NAME_GESTURE_TAB) ? mKeyStream : null);
+		if (!sTabHost.getCurrentTabTag().equals(NAME_GESTURE_TAB))
+			mKeyStream.cancel();
 	}
 
 	/**
-	 * Called when a tab is selected. Returns the layout for the selected tab.
-	 * Default is navigation tab
+	 * Called when a tab is selected. Returns the layout for the selected tab,
+	 * reusing the view inflated earlier for the same orientation if there is
+	 * one. Default is navigation tab
 	 */
 	public View createTabContent(String tag) {
+		final String key = tag + "-"
+				+ this.getResources().getConfiguration().orientation;
+		View view = mTabViews.get(key);
+		if (view == null) {
+			view = inflateTabContent(tag);
+			mTabViews.put(key, view);
+		} else if (view.getParent() != null) {
+			// still attached to the tab host the tabs were cleared from
+			((ViewGroup) view.getParent()).removeView(view);
+		}
+		return view;
+	}
+
+	/**
+	 * Inflates the layout for the tab
+	 */
+	private View inflateTabContent(String tag) {
 
 		// check which tab content to return
 		if (tag == NAME_NAV_TAB) {
@@ -289,6 +394,10 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 			// return number pad view
 			return this.getLayoutInflater().inflate(R.layout.numberpad,
 					this.getTabHost().getTabContentView(), false);
+		} else if (tag == NAME_GESTURE_TAB) {
+			// return touch pad view
+			return this.getLayoutInflater().inflate(R.layout.gesturepad,
+					this.getTabHost().getTabContentView(), false);
 		} else {
 			// default to navigation tab view
 			return this.getLayoutInflater().inflate(R.layout.navigation,
@@ -300,11 +409,8 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 	 * Called when the frontend location is changed
 	 */
 	public void LocationChanged() {
-		if (sComm.IsConnected())
-			sComm.Disconnect();
-
-		if (this.setSelectedLocation())
-			sComm.Connect(sLocation);
+		// the session is replaced only if the new location is elsewhere
+		this.setSelectedLocation();
 	}
 
 	/**
@@ -321,6 +427,7 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 			setTitleColor(Color.RED);
 		} else if (statusCode == MythCom.STATUS_CONNECTED) {
 			setTitleColor(Color.GREEN);
+			StartupTrace.mark(StartupTrace.CONNECTED);
 		} else if (statusCode == MythCom.STATUS_CONNECTING) {
 			setTitleColor(Color.YELLOW);
 		}
@@ -338,53 +445,38 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 			return null;
 		v.setOnLongClickListener(mKeyManager);
 		v.setOnClickListener(mKeyManager);
+		v.setOnTouchListener(mKeyManager);
 		return v;
 	}
 
 	/**
-	 * Reads the selected frontend from preferences and attempts to connect with
-	 * MythCom.Connect()
+	 * Reads the selected frontend from preferences, loads it in the
+	 * background and then has MythComService connect to it
 	 */
-	private boolean setSelectedLocation() {
+	private void setSelectedLocation() {
 
 		// load shared preferences
 		this.loadSharedPreferences();
 
-		// _location should be initialized
-		if (sLocation == null) {
-			Log.e(LOG_TAG,
-					"Cannot set location. Location object not initialized.");
-		}
+		// only the latest request may connect
+		final int request = ++mLocationRequest;
+		mRepository.getFrontendLocation(mSelected,
+				new MythMoteRepository.Callback<FrontendLocation>() {
+					public void onResult(FrontendLocation location) {
+						if (request != mLocationRequest || isFinishing())
+							return;
+						StartupTrace.mark(StartupTrace.LOCATION_LOADED);
+						if (location == null) {
+							Log.e(LOG_TAG, "Selected location " + mSelected
+									+ " not found.");
+							return;
+						}
 
-		// create location database adapter
-		MythMoteDbManager dbManager = new MythMoteDbManager(this);
-
-		// open connect
-		dbManager.open();
-
-		// get the selected location information by it's ID
-		Cursor cursor = dbManager.fetchFrontendLocation(sSelected);
-
-		// make sure returned cursor is valid
-		if (cursor == null || cursor.getCount() <= 0)
-			return false;
-		// set selected location from Cursor
-		sLocation.ID = cursor.getInt(cursor
-				.getColumnIndex(MythMoteDbHelper.KEY_ROWID));
-		sLocation.Name = cursor.getString(cursor
-				.getColumnIndex(MythMoteDbHelper.KEY_NAME));
-		sLocation.Address = cursor.getString(cursor
-				.getColumnIndex(MythMoteDbHelper.KEY_ADDRESS));
-		sLocation.Port = cursor.getInt(cursor
-				.getColumnIndex(MythMoteDbHelper.KEY_PORT));
-
-		// close cursor and db adapter
-		cursor.close();
-		dbManager.close();
-		// connect to location
-		sComm.Connect(sLocation);
-
-		return true;
+						// connect to location, or keep the session to it
+						mLocation = location;
+						MythComService.connect(MythMote.this, mLocation);
+					}
+				});
 	}
 
 	/**
@@ -404,6 +496,14 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 					Editable text = textBox.getText();
 					int count = text.length();
 
+					// hidden debug screen
+					if (MetricsActivity.SECRET_CODE.equals(text.toString())) {
+						text.clear();
+						startActivity(new Intent(MythMote.this,
+								MetricsActivity.class));
+						return;
+					}
+
 					// for each character
 					for (int i = 0; i < count; i++) {
 						// get char
@@ -413,17 +513,17 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 						if (Character.isWhitespace(c)) {
 							if (c == '\t')// tab
 							{
-								sComm.SendKey("tab");
+								mComm.SendKey("tab");
 							} else if (c == ' ')// space
 							{
-								sComm.SendKey("space");
+								mComm.SendKey("space");
 							} else if (c == '\r')// enter/return
 							{
-								sComm.SendKey("enter");
+								mComm.SendKey("enter");
 							}
 						} else// not white space. Just send as is
 						{
-							sComm.SendKey(c);
+							mComm.SendKey(c);
 						}
 					}
 				}
@@ -431,6 +531,25 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 		}
 	}
 
+	/**
+	 * Connects the number pad's channel entry check box to channel entry. The
+	 * box shows the digits entered so far.
+	 */
+	private void setupChannelEntryCheckBox() {
+		final CheckBox checkBox = (CheckBox) this
+				.findViewById(R.id.CheckBoxChannelEntry);
+		mChannelEntry.setDisplay(checkBox);
+		if (checkBox != null) {
+			checkBox.setChecked(mChannelEntry.isEnabled());
+			checkBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+				public void onCheckedChanged(CompoundButton buttonView,
+						boolean isChecked) {
+					mChannelEntry.setEnabled(isChecked);
+				}
+			});
+		}
+	}
+
 	/**
 	 * Called to create and add tabs to the tabhost
 	 */
@@ -446,6 +565,9 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 		sTabHost.addTab(sTabHost.newTabSpec(NAME_NUMPAD_TAB)
 				.setIndicator(this.getString(R.string.numpad_str))
 				.setContent(this));
+		sTabHost.addTab(sTabHost.newTabSpec(NAME_GESTURE_TAB)
+				.setIndicator(this.getString(R.string.gesture_pad_str))
+				.setContent(this));
 
 		// resize tabs to remove useless space
 		final int count = sTabHost.getTabWidget().getChildCount();
@@ -463,7 +585,10 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 				MODE_PRIVATE);
 
 		// get selected frontend id
-		sSelected = pref.getInt(MythMotePreferences.PREF_SELECTED_LOCATION, -1);
+		mSelected = pref.getInt(MythMotePreferences.PREF_SELECTED_LOCATION, -1);
+
+		// use the selected frontend's own key bindings, if it has any
+		this.mKeyManager.setLocationId(mSelected);
 
 		// get keybindings editable preference
 		this.mKeyManager.setEditingEnabled(pref.getBoolean(
@@ -473,6 +598,15 @@ public class MythMote extends TabActivity implements TabHost.TabContentFactory,
 		this.mKeyManager.setHapticFeedbackEnabled(pref.getBoolean(
 				MythMotePreferences.PREF_HAPTIC_FEEDBACK_ENABLED, false));
 
+		// time button presses if asked to
+		LatencyTrace.setEnabled(pref.getBoolean(
+				MythMotePreferences.PREF_LATENCY_TRACE_ENABLED, false));
+
+		// set how long channel entry waits for more digits
+		mChannelEntry.setDelay(pref.getInt(
+				MythMotePreferences.PREF_CHANNEL_ENTRY_DELAY,
+				ChannelEntry.DEFAULT_DELAY));
+
 		// done with pref ref
 		pref = null;
 	}
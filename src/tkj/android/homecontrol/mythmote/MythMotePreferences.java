@@ -16,40 +16,85 @@
 
 package tkj.android.homecontrol.mythmote;
 
-import tkj.android.homecontrol.mythmote.db.MythMoteDbHelper;
-import tkj.android.homecontrol.mythmote.db.MythMoteDbManager;
+import java.io.File;
+import java.util.List;
+
+import tkj.android.homecontrol.mythmote.db.BackupFormat;
+import tkj.android.homecontrol.mythmote.db.MythMoteRepository;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.os.Environment;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
 import android.preference.Preference.OnPreferenceClickListener;
-import android.database.Cursor;
 import android.view.Menu;
+import android.util.SparseArray;
 import android.view.MenuItem;
+import android.widget.Toast;
 
-public class MythMotePreferences extends PreferenceActivity {
+public class MythMotePreferences extends PreferenceActivity implements
+		OnSharedPreferenceChangeListener {
 
 	public static final int NEW_LOCATION_ID = Menu.FIRST;
 	public static final int DELETE_LOCATION_ID = Menu.FIRST + 1;
+	public static final int EXPORT_ID = Menu.FIRST + 2;
+	public static final int IMPORT_ID = Menu.FIRST + 3;
+	public static final String BACKUP_FILE_NAME = "mythmote-backup.txt";
 	public static final String MYTHMOTE_SHARED_PREFERENCES_ID = "mythmote.preferences";
 	public static final String PREF_SELECTED_LOCATION = "selected-frontend";
 	public static final String PREF_HAPTIC_FEEDBACK_ENABLED = "haptic-feedback-enabled";
 	public static final String PREF_KEYBINDINGS_EDITABLE = "keybindings-editable";
 	public static final String PREF_STATUS_UPDATE_INTERVAL = "status-update-interval";
+	public static final String PREF_CHANNEL_ENTRY_DELAY = "channel-entry-delay";
+	public static final String PREF_LATENCY_TRACE_ENABLED = "latency-trace-enabled";
 	public static final int REQUEST_LOCATIONEDITOR = 0;
 
-	private static int _idIndex;
-	private static int _addressIndex;
-	private static int _nameIndex;
-	private static int _portIndex;
+	/** Location list preferences keyed by location id **/
+	private final SparseArray<Preference> mLocationPrefs = new SparseArray<Preference>();
+	private PreferenceCategory mLocationListCat;
+	private Preference mSelectedPref;
+	private boolean mLocationsLoaded = false;
+
+	/** Applies each change to the frontends table to the location list **/
+	private final MythMoteRepository.FrontendObserver mFrontendObserver = new MythMoteRepository.FrontendObserver() {
+		public void onFrontendSaved(FrontendLocation location) {
+			// changes made before the list was read are already in it
+			if (!mLocationsLoaded)
+				return;
+			Preference pref = mLocationPrefs.get(location.ID);
+			if (pref == null) {
+				addLocationPreference(location);
+			} else {
+				pref.setTitle(location.Name);
+				pref.setSummary(location.Address);
+			}
+			updateSelectedLocation();
+		}
+
+		public void onFrontendDeleted(int id) {
+			if (!mLocationsLoaded)
+				return;
+			Preference pref = mLocationPrefs.get(id);
+			if (pref != null) {
+				mLocationListCat.removePreference(pref);
+				mLocationPrefs.remove(id);
+			}
+			updateSelectedLocation();
+		}
+
+		public void onFrontendsReset() {
+			loadLocations();
+		}
+	};
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -58,14 +103,32 @@ public class MythMotePreferences extends PreferenceActivity {
 		// set shared preference name
 		this.getPreferenceManager().setSharedPreferencesName(
 				MYTHMOTE_SHARED_PREFERENCES_ID);
+
+		// build the screen once, later changes are applied to it as they
+		// happen
+		setupPreferences();
+		MythMoteRepository.addFrontendObserver(mFrontendObserver);
+		getSharedPreferences(MYTHMOTE_SHARED_PREFERENCES_ID, MODE_PRIVATE)
+				.registerOnSharedPreferenceChangeListener(this);
+		loadLocations();
 	}
 
 	@Override
-	public void onResume() {
-		super.onResume();
+	protected void onDestroy() {
+		super.onDestroy();
 
-		// configure all preferences
-		setupPreferences(this);
+		MythMoteRepository.removeFrontendObserver(mFrontendObserver);
+		getSharedPreferences(MYTHMOTE_SHARED_PREFERENCES_ID, MODE_PRIVATE)
+				.unregisterOnSharedPreferenceChangeListener(this);
+	}
+
+	/**
+	 * Keeps the selected location preference in step with the saved
+	 * selection
+	 */
+	public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+		if (PREF_SELECTED_LOCATION.equals(key) && mLocationsLoaded)
+			updateSelectedLocation();
 	}
 
 	@Override
@@ -75,6 +138,8 @@ public class MythMotePreferences extends PreferenceActivity {
 				R.drawable.menu_add);
 		menu.add(0, DELETE_LOCATION_ID, 0, R.string.delete_location_str)
 				.setIcon(R.drawable.menu_close_clear_cancel);
+		menu.add(0, EXPORT_ID, 0, R.string.export_str);
+		menu.add(0, IMPORT_ID, 0, R.string.import_str);
 		return result;
 	}
 
@@ -86,33 +151,120 @@ public class MythMotePreferences extends PreferenceActivity {
 			showLocationEditDialog(context, null);
 		} else if (item.getItemId() == DELETE_LOCATION_ID) {
 			showDeleteLocationList(context);
+		} else if (item.getItemId() == EXPORT_ID) {
+			exportBackup(context);
+		} else if (item.getItemId() == IMPORT_ID) {
+			showImportDialog(context);
 		}
 		return true;
 	}
 
-	private static void setupPreferences(PreferenceActivity context) {
+	/**
+	 * Writes all frontends and key bindings to the backup file on the SD
+	 * card
+	 */
+	private static void exportBackup(final Activity context) {
+		final File file = new File(Environment.getExternalStorageDirectory(),
+				BACKUP_FILE_NAME);
+		new MythMoteRepository(context).exportBackup(file,
+				new MythMoteRepository.Callback<BackupFormat.Result>() {
+					public void onResult(BackupFormat.Result result) {
+						if (result == null) {
+							Toast.makeText(context, context.getString(
+									R.string.backup_failed_str, file.getPath()),
+									Toast.LENGTH_LONG).show();
+							return;
+						}
+						Toast.makeText(context, context.getString(
+								R.string.export_done_str, result.Frontends,
+								result.KeyBindings, file.getPath()),
+								Toast.LENGTH_LONG).show();
+					}
+				});
+	}
+
+	/**
+	 * Asks whether to merge the backup file with the current data or replace
+	 * it, then imports it
+	 */
+	private static void showImportDialog(final PreferenceActivity context) {
+		final File file = new File(Environment.getExternalStorageDirectory(),
+				BACKUP_FILE_NAME);
+		if (!file.exists()) {
+			Toast.makeText(context, context.getString(
+					R.string.backup_failed_str, file.getPath()),
+					Toast.LENGTH_LONG).show();
+			return;
+		}
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(context);
+		builder.setTitle(R.string.import_str);
+		builder.setMessage(R.string.import_msg_str);
+		builder.setPositiveButton(R.string.merge_str,
+				new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						importBackup(context, file, false);
+					}
+				});
+		builder.setNeutralButton(R.string.replace_str,
+				new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						importBackup(context, file, true);
+					}
+				});
+		builder.setNegativeButton(R.string.cancel_str, null);
+		builder.show();
+	}
+
+	private static void importBackup(final PreferenceActivity context,
+			final File file, boolean replace) {
+		new MythMoteRepository(context).importBackup(file, replace,
+				new MythMoteRepository.Callback<BackupFormat.Result>() {
+					public void onResult(BackupFormat.Result result) {
+						if (result == null) {
+							Toast.makeText(context, context.getString(
+									R.string.backup_failed_str, file.getPath()),
+									Toast.LENGTH_LONG).show();
+							return;
+						}
+						WidgetService.requestUpdate(context);
+						Toast.makeText(context, context.getString(
+								R.string.import_done_str, result.Frontends,
+								result.KeyBindings, result.Skipped),
+								Toast.LENGTH_LONG).show();
+					}
+				});
+	}
+
+	private void setupPreferences() {
+		final PreferenceActivity context = this;
+
 		// create Categories
 		PreferenceScreen prefScreen = context.getPreferenceManager()
 				.createPreferenceScreen(context);
-		prefScreen.removeAll();
 
 		PreferenceCategory selectedCat = new PreferenceCategory(context);
 		selectedCat.setTitle(R.string.selected_location_str);
-		PreferenceCategory locationListCat = new PreferenceCategory(context);
-		locationListCat.setTitle(R.string.location_list_str);
+		mLocationListCat = new PreferenceCategory(context);
+		mLocationListCat.setTitle(R.string.location_list_str);
 		PreferenceCategory generalCat = new PreferenceCategory(context);
 		generalCat.setTitle(R.string.general_preferences_str);
 
 		// add categories to preference screen
 		prefScreen.addPreference(selectedCat);
-		prefScreen.addPreference(locationListCat);
+		prefScreen.addPreference(mLocationListCat);
 		prefScreen.addPreference(generalCat);
 
+		// the selected location is filled in once the locations are read
+		mSelectedPref = createSelectedLocationPreference(context, context
+				.getString(R.string.selected_location_str), "");
+		selectedCat.addPreference(mSelectedPref);
+
 		// Create add and delete location preferences and add to location list
-		locationListCat.addPreference(createAddLocationPreference(context,
+		mLocationListCat.addPreference(createAddLocationPreference(context,
 				context.getString(R.string.add_location_str),
 				context.getString(R.string.add_location_description_str)));
-		locationListCat.addPreference(createDeleteLocationPreference(context,
+		mLocationListCat.addPreference(createDeleteLocationPreference(context,
 				context.getString(R.string.delete_location_str),
 				context.getString(R.string.delete_location_description_str)));
 
@@ -124,6 +276,14 @@ public class MythMotePreferences extends PreferenceActivity {
 				R.array.status_Update_Interval_strings,
 				R.array.status_Update_Interval_values, "5000"));
 
+		// create number pad channel entry delay preference
+		generalCat.addPreference(createIntListPreference(context,
+				PREF_CHANNEL_ENTRY_DELAY,
+				R.string.channel_entry_delay_str,
+				R.string.channel_entry_delay_description_str,
+				R.array.channel_Entry_Delay_strings,
+				R.array.channel_Entry_Delay_values, "1000"));
+
 		// create haptic feedback shared preference
 		generalCat.addPreference(createCheckBox(context,
 				PREF_HAPTIC_FEEDBACK_ENABLED,
@@ -136,78 +296,71 @@ public class MythMotePreferences extends PreferenceActivity {
 				R.string.keybindings_editable_str,
 				R.string.keybindings_editable_descriptions_str, true));
 
-		// open DB
-		MythMoteDbManager _dbAdapter = new MythMoteDbManager(context);
-		_dbAdapter.open();
-
-		// get list of locations
-		Cursor cursor = _dbAdapter.fetchAllFrontendLocations();
-
-		// get column indexes
-		_idIndex = cursor.getColumnIndex(MythMoteDbHelper.KEY_ROWID);
-		_addressIndex = cursor.getColumnIndex(MythMoteDbHelper.KEY_ADDRESS);
-		_nameIndex = cursor.getColumnIndex(MythMoteDbHelper.KEY_NAME);
-		_portIndex = cursor.getColumnIndex(MythMoteDbHelper.KEY_PORT);
-
-		// determine if we have locations saved
-		int count = cursor.getCount();
-		if (count > 0 && cursor.moveToFirst()) {
-			// get selected frontend id
-			int selected = context.getSharedPreferences(
-					MYTHMOTE_SHARED_PREFERENCES_ID, MODE_PRIVATE).getInt(
-					MythMotePreferences.PREF_SELECTED_LOCATION, -1);
-
-			// if selected failed
-			if (selected == -1) {
-				// set to first in list
-				selected = cursor.getInt(_idIndex);
-				// save (defaulted) selected location
-				SaveSelectedLocationId(context, selected);
-			}
+		// create latency tracing preference, see the "#metrics" screen
+		generalCat.addPreference(createCheckBox(context,
+				PREF_LATENCY_TRACE_ENABLED,
+				R.string.latency_trace_enabled_str,
+				R.string.latency_trace_enabled_description_str, false));
 
-			// put each location in the preference list
-			for (int i = 0; i < count; i++) {
-				locationListCat.addPreference(MythMotePreferences
-						.createLocationPreference(context,
-								cursor.getString(_idIndex),
-								cursor.getString(_nameIndex),
-								cursor.getString(_addressIndex)));
-
-				if (cursor.getInt(_idIndex) == selected) {
-					// create preference for selected location
-					selectedCat.addPreference(MythMotePreferences
-							.createSelectedLocationPreference(context, context
-									.getString(R.string.selected_location_str),
-									cursor.getString(_nameIndex)));
-				}
+		// set preference screen
+		context.setPreferenceScreen(prefScreen);
+	}
 
-				cursor.moveToNext();
-			}
+	/**
+	 * Reads the locations in the background and lists them when they
+	 * arrive, replacing any already listed
+	 */
+	private void loadLocations() {
+		mLocationsLoaded = false;
+		new MythMoteRepository(this).getAllFrontendLocations(
+				new MythMoteRepository.Callback<List<FrontendLocation>>() {
+					public void onResult(List<FrontendLocation> locations) {
+						if (isFinishing() || locations == null)
+							return;
+
+						for (int i = 0; i < mLocationPrefs.size(); i++)
+							mLocationListCat.removePreference(mLocationPrefs
+									.valueAt(i));
+						mLocationPrefs.clear();
+
+						// put each location in the preference list
+						for (FrontendLocation location : locations)
+							addLocationPreference(location);
+						mLocationsLoaded = true;
+						updateSelectedLocation();
+					}
+				});
+	}
 
-			// the saved selected location was not found just pick the first one
-			if (selectedCat.getPreferenceCount() <= 0) {
-				cursor.moveToFirst();
-				selectedCat.addPreference(MythMotePreferences
-						.createSelectedLocationPreference(context, context
-								.getString(R.string.selected_location_str),
-								cursor.getString(_nameIndex)));
+	private void addLocationPreference(FrontendLocation location) {
+		Preference pref = createLocationPreference(this, Integer
+				.toString(location.ID), location.Name, location.Address);
+		mLocationListCat.addPreference(pref);
+		mLocationPrefs.put(location.ID, pref);
+	}
 
-				// save location ID so that it is for real
-				SaveSelectedLocationId(context, cursor.getInt(_idIndex));
-			}
-		} else {
-			selectedCat
-					.addPreference(MythMotePreferences.createSelectedLocationPreference(
-							context,
-							context.getString(R.string.selected_location_str),
-							context.getString(R.string.no_frontend_locations_defined_str)));
+	/**
+	 * Shows the selected location. If the saved selection no longer exists
+	 * the first location is selected instead.
+	 */
+	private void updateSelectedLocation() {
+		// get selected frontend id
+		int selected = getSharedPreferences(MYTHMOTE_SHARED_PREFERENCES_ID,
+				MODE_PRIVATE).getInt(PREF_SELECTED_LOCATION, -1);
+		Preference pref = mLocationPrefs.get(selected);
+
+		// the saved selected location was not found just pick the first one
+		if (pref == null && mLocationPrefs.size() > 0) {
+			pref = mLocationPrefs.valueAt(0);
+
+			// save location ID so that it is for real
+			SaveSelectedLocationId(this, mLocationPrefs.keyAt(0));
 		}
 
-		cursor.close();
-		_dbAdapter.close();
-
-		// set preference screen
-		context.setPreferenceScreen(prefScreen);
+		if (pref != null)
+			mSelectedPref.setSummary(pref.getTitle());
+		else
+			mSelectedPref.setSummary(R.string.no_frontend_locations_defined_str);
 	}
 
 	private static void showLocationEditDialog(Activity context,
@@ -228,40 +381,33 @@ public class MythMotePreferences extends PreferenceActivity {
 	}
 
 	private static void showDeleteLocationList(final Activity context) {
-		final MythMoteDbManager _dbAdapter = new MythMoteDbManager(context);
-		_dbAdapter.open();
-		final Cursor cursor = _dbAdapter.fetchAllFrontendLocations();
-
-		int count = cursor.getCount();
-		if (count > 0 && cursor.moveToFirst()) {
-			final String[] names = new String[count];
-			final int[] ids = new int[count];
-			for (int i = 0; i < count; i++) {
-				names[i] = cursor.getString(cursor
-						.getColumnIndex(MythMoteDbHelper.KEY_NAME));
-				ids[i] = cursor.getInt(cursor
-						.getColumnIndex(MythMoteDbHelper.KEY_ROWID));
-				cursor.moveToNext();
-			}
-
-			AlertDialog.Builder builder = new AlertDialog.Builder(context);
-			builder.setTitle(R.string.delete_location_str);
-			builder.setItems(names, new DialogInterface.OnClickListener() {
+		final MythMoteRepository repository = new MythMoteRepository(context);
+		repository.getAllFrontendLocations(new MythMoteRepository.Callback<List<FrontendLocation>>() {
+			public void onResult(List<FrontendLocation> locations) {
+				if (context.isFinishing() || locations == null
+						|| locations.size() <= 0)
+					return;
+
+				final String[] names = new String[locations.size()];
+				final int[] ids = new int[locations.size()];
+				for (int i = 0; i < names.length; i++) {
+					names[i] = locations.get(i).Name;
+					ids[i] = locations.get(i).ID;
+				}
 
-				public void onClick(DialogInterface dialog, int which) {
-					MythMoteDbManager dbAdapter = new MythMoteDbManager(context);
-					dbAdapter.open();
-					dbAdapter.deleteFrontendLocation(ids[which]);
-					dbAdapter.close();
+				AlertDialog.Builder builder = new AlertDialog.Builder(context);
+				builder.setTitle(R.string.delete_location_str);
+				builder.setItems(names, new DialogInterface.OnClickListener() {
 
-					setupPreferences((PreferenceActivity) context);
-				}
+					public void onClick(DialogInterface dialog, int which) {
+						// the location list follows the frontend change feed
+						repository.deleteFrontendLocation(ids[which], null);
+					}
 
-			});
-			builder.show();
-		}
-		cursor.close();
-		_dbAdapter.close();
+				});
+				builder.show();
+			}
+		});
 	}
 
 	private static CheckBoxPreference createCheckBox(Context context,
@@ -301,27 +447,14 @@ public class MythMotePreferences extends PreferenceActivity {
 
 			public boolean onPreferenceClick(Preference preference) {
 				// Open location edit dialog with a location loaded
-				FrontendLocation location = new FrontendLocation();
-
-				location.ID = Integer.parseInt(preference.getKey());
-
-				MythMoteDbManager dbAdapter = new MythMoteDbManager(context);
-				dbAdapter.open();
-				Cursor cursor = dbAdapter.fetchFrontendLocation(location.ID);
-
-				// get column indexes
-				_idIndex = cursor.getColumnIndex(MythMoteDbHelper.KEY_ROWID);
-				_addressIndex = cursor
-						.getColumnIndex(MythMoteDbHelper.KEY_ADDRESS);
-				_nameIndex = cursor.getColumnIndex(MythMoteDbHelper.KEY_NAME);
-				_portIndex = cursor.getColumnIndex(MythMoteDbHelper.KEY_PORT);
-
-				if (cursor != null && cursor.getCount() > 0) {
-					location.Name = cursor.getString(_nameIndex);
-					location.Address = cursor.getString(_addressIndex);
-					location.Port = cursor.getInt(_portIndex);
-					showLocationEditDialog(context, location);
-				}
+				new MythMoteRepository(context).getFrontendLocation(Integer
+						.parseInt(preference.getKey()),
+						new MythMoteRepository.Callback<FrontendLocation>() {
+							public void onResult(FrontendLocation location) {
+								if (location != null && !context.isFinishing())
+									showLocationEditDialog(context, location);
+							}
+						});
 				return false;
 			}
 
@@ -387,8 +520,8 @@ public class MythMotePreferences extends PreferenceActivity {
 				// even if the user selects the same location already selected.
 				SelectLocation(context, new LocationChangedEventListener() {
 					public void LocationChanged() {
-						// reset preference list with updated selection
-						setupPreferences(context);
+						// the selected preference follows the saved selection
+						// through onSharedPreferenceChanged()
 					}
 
 				});
@@ -400,40 +533,36 @@ public class MythMotePreferences extends PreferenceActivity {
 
 	public static void SelectLocation(final Activity context,
 			final LocationChangedEventListener listener) {
-		MythMoteDbManager _dbAdapter = new MythMoteDbManager(context);
-		_dbAdapter.open();
-		final Cursor cursor = _dbAdapter.fetchAllFrontendLocations();
-
-		int count = cursor.getCount();
-		if (count > 0 && cursor.moveToFirst()) {
-			final String[] names = new String[count];
-			final int[] ids = new int[count];
-			for (int i = 0; i < count; i++) {
-				names[i] = cursor.getString(cursor
-						.getColumnIndex(MythMoteDbHelper.KEY_NAME));
-				ids[i] = cursor.getInt(cursor
-						.getColumnIndex(MythMoteDbHelper.KEY_ROWID));
-				cursor.moveToNext();
-			}
+		new MythMoteRepository(context).getAllFrontendLocations(new MythMoteRepository.Callback<List<FrontendLocation>>() {
+			public void onResult(List<FrontendLocation> locations) {
+				if (context.isFinishing() || locations == null
+						|| locations.size() <= 0)
+					return;
+
+				final String[] names = new String[locations.size()];
+				final int[] ids = new int[locations.size()];
+				for (int i = 0; i < names.length; i++) {
+					names[i] = locations.get(i).Name;
+					ids[i] = locations.get(i).ID;
+				}
 
-			// show list of locations as a single selected list
-			AlertDialog.Builder builder = new AlertDialog.Builder(context);
-			builder.setTitle(R.string.select_location_str);
-			builder.setItems(names, new DialogInterface.OnClickListener() {
+				// show list of locations as a single selected list
+				AlertDialog.Builder builder = new AlertDialog.Builder(context);
+				builder.setTitle(R.string.select_location_str);
+				builder.setItems(names, new DialogInterface.OnClickListener() {
 
-				public void onClick(DialogInterface dialog, int which) {
+					public void onClick(DialogInterface dialog, int which) {
 
-					// save selected location
-					SaveSelectedLocationId(context, ids[which]);
+						// save selected location
+						SaveSelectedLocationId(context, ids[which]);
 
-					// notify that we selected a location
-					listener.LocationChanged();
-				}
-			});
-			builder.show();
-		}
-		cursor.close();
-		_dbAdapter.close();
+						// notify that we selected a location
+						listener.LocationChanged();
+					}
+				});
+				builder.show();
+			}
+		});
 	}
 
 	private static void SaveSelectedLocationId(Activity context, int id) {
@@ -442,6 +571,9 @@ public class MythMotePreferences extends PreferenceActivity {
 		SharedPreferences.Editor editor = settings.edit();
 		editor.putInt(MythMotePreferences.PREF_SELECTED_LOCATION, id);
 		editor.commit();
+
+		// widgets show the selected frontend's bindings
+		WidgetService.requestUpdate(context);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager.MythKey;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Home screen widget with a row of buttons, each sending the command bound
+ * to one MythMote key. The keys are picked in WidgetConfigure. Building the
+ * buttons and sending happen in WidgetService, so nothing here touches the
+ * database or the network.
+ */
+public class MythMoteWidget extends AppWidgetProvider {
+
+	public static final int BUTTON_COUNT = 4;
+
+	/** Shared preference holding a widget's keys, followed by its id **/
+	public static final String PREF_WIDGET_KEYS = "widget-keys-";
+
+	static final int[] BUTTON_IDS = { R.id.WidgetButton1, R.id.WidgetButton2,
+			R.id.WidgetButton3, R.id.WidgetButton4 };
+
+	static final MythKey[] DEFAULT_KEYS = { MythKey.BUTTON_REWIND,
+			MythKey.BUTTON_PAUSE, MythKey.BUTTON_PLAY,
+			MythKey.BUTTON_FAST_FORWARD };
+
+	@Override
+	public void onUpdate(Context context, AppWidgetManager appWidgetManager,
+			int[] appWidgetIds) {
+		WidgetService.requestUpdate(context, appWidgetIds);
+	}
+
+	@Override
+	public void onDeleted(Context context, int[] appWidgetIds) {
+		SharedPreferences.Editor editor = context.getSharedPreferences(
+				MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID,
+				Context.MODE_PRIVATE).edit();
+		for (int id : appWidgetIds)
+			editor.remove(PREF_WIDGET_KEYS + id);
+		editor.commit();
+	}
+
+	/**
+	 * Returns the keys shown on the widget, the defaults if none were picked
+	 */
+	static MythKey[] getKeys(Context context, int appWidgetId) {
+		String saved = context.getSharedPreferences(
+				MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID,
+				Context.MODE_PRIVATE).getString(PREF_WIDGET_KEYS + appWidgetId,
+				null);
+		if (saved == null || saved.length() == 0)
+			return DEFAULT_KEYS;
+
+		String[] names = saved.split(",");
+		MythKey[] keys = new MythKey[Math.min(names.length, BUTTON_COUNT)];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = MythKey.getByName(names[i]);
+		return keys;
+	}
+
+	static void setKeys(Context context, int appWidgetId, MythKey[] keys) {
+		StringBuilder saved = new StringBuilder();
+		for (int i = 0; i < keys.length && i < BUTTON_COUNT; i++) {
+			if (i > 0)
+				saved.append(',');
+			saved.append(keys[i].name());
+		}
+		SharedPreferences.Editor editor = context.getSharedPreferences(
+				MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID,
+				Context.MODE_PRIVATE).edit();
+		editor.putString(PREF_WIDGET_KEYS + appWidgetId, saved.toString());
+		editor.commit();
+	}
+
+}
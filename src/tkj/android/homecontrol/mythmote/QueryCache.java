@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Per session cache of responses to read-only frontend queries. Each query
+ * has its own time to live, concurrent callers of the same query share one
+ * request to the frontend, and answers that depend on what the frontend is
+ * showing are dropped as soon as a command changes that.
+ */
+public class QueryCache {
+
+	/** Fetches a response from the frontend. Returns null on failure **/
+	public interface Loader {
+
+		public String load(String command);
+	}
+
+	/** How long answers to a family of queries stay valid **/
+	private static final class Rule {
+		final String prefix;
+		final long ttl;
+		final boolean stateDependent;
+
+		Rule(String prefix, long ttl, boolean stateDependent) {
+			this.prefix = prefix;
+			this.ttl = ttl;
+			this.stateDependent = stateDependent;
+		}
+	}
+
+	private static final class Entry {
+		final String value;
+		final long expires;
+		final long generation;
+
+		Entry(String value, long expires, long generation) {
+			this.value = value;
+			this.expires = expires;
+			this.generation = generation;
+		}
+	}
+
+	/** Queries that are not listed here are never cached **/
+	private static final Rule[] RULES = {
+			new Rule("query location", 1000, true),
+			new Rule("query livetv", 5000, true),
+			new Rule("query recordings", 60000, false),
+			new Rule("query channels", 600000, false),
+			new Rule("query version", 3600000, false) };
+
+	private final Loader mLoader;
+	private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<String, FutureTask<String>> mInFlight = new ConcurrentHashMap<String, FutureTask<String>>();
+
+	/** Bumped whenever the frontend state may have changed **/
+	private final AtomicLong mStateGeneration = new AtomicLong();
+
+	public QueryCache(Loader loader) {
+		mLoader = loader;
+	}
+
+	/**
+	 * Returns the response to the query, from the cache if it is still fresh.
+	 * If the same query is already being fetched the caller waits for that
+	 * result instead of asking the frontend again.
+	 */
+	public String get(final String command) {
+		final Rule rule = ruleFor(command);
+		if (rule == null)
+			return mLoader.load(command);
+
+		String cached = lookup(command, rule);
+		if (cached != null)
+			return cached;
+
+		final long generation = mStateGeneration.get();
+		FutureTask<String> task = new FutureTask<String>(
+				new Callable<String>() {
+					public String call() {
+						String value = mLoader.load(command);
+						if (value != null)
+							store(command, rule, value, generation);
+						return value;
+					}
+				});
+
+		FutureTask<String> running = mInFlight.putIfAbsent(command, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				mInFlight.remove(command, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Log.e(MythMote.LOG_TAG, "Query failed: " + command, e.getCause());
+			return null;
+		}
+	}
+
+	/** Stores a response that was fetched outside of get() **/
+	public void put(String command, String value) {
+		Rule rule = ruleFor(command);
+		if (rule != null && value != null)
+			store(command, rule, value, mStateGeneration.get());
+	}
+
+	/**
+	 * Drops answers that depend on the current frontend screen. Called on
+	 * every state changing command so it does not allocate.
+	 */
+	public void invalidateState() {
+		mStateGeneration.incrementAndGet();
+	}
+
+	/** Drops everything, used when the session connects somewhere new **/
+	public void clear() {
+		mStateGeneration.incrementAndGet();
+		mEntries.clear();
+	}
+
+	/**
+	 * Returns how long answers to the query are kept, or 0 if they are not
+	 * cached. For callers keeping parsed answers of their own.
+	 */
+	public static long getTimeToLive(String command) {
+		Rule rule = ruleFor(command);
+		return rule != null ? rule.ttl : 0;
+	}
+
+	private String lookup(String command, Rule rule) {
+		Entry entry = mEntries.get(command);
+		if (entry == null)
+			return null;
+		if (entry.expires <= SystemClock.uptimeMillis()
+				|| (rule.stateDependent && entry.generation != mStateGeneration
+						.get())) {
+			mEntries.remove(command, entry);
+			return null;
+		}
+		return entry.value;
+	}
+
+	private void store(String command, Rule rule, String value,
+			long generation) {
+		// an answer fetched before a state change is already stale
+		if (rule.stateDependent && generation != mStateGeneration.get())
+			return;
+		mEntries.put(command, new Entry(value, SystemClock.uptimeMillis()
+				+ rule.ttl, generation));
+	}
+
+	private static Rule ruleFor(String command) {
+		for (Rule rule : RULES) {
+			if (command.regionMatches(true, 0, rule.prefix, 0,
+					rule.prefix.length()))
+				return rule;
+		}
+		return null;
+	}
+
+}
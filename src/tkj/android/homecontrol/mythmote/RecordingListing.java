@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.HashMap;
+
+/**
+ * Compact store for the output of "query recordings". Each line is parsed as
+ * it streams in and kept as a channel id, a packed start time and shared
+ * title strings, so thousands of recordings fit in a small, bounded amount
+ * of memory. Appending and reading may happen on different threads.
+ */
+public class RecordingListing implements ResponseReader.LineHandler {
+
+	/** Recordings beyond this many are counted but not kept **/
+	public static final int MAX_RECORDINGS = 10000;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private int[] mChanIds = new int[INITIAL_CAPACITY];
+	private long[] mStartTimes = new long[INITIAL_CAPACITY];
+	private String[] mTitles = new String[INITIAL_CAPACITY];
+	private String[] mSubtitles = new String[INITIAL_CAPACITY];
+	private int mCount;
+	private int mDropped;
+	private volatile boolean mCancelled;
+
+	/** Series titles repeat a lot, keep one copy of each **/
+	private final HashMap<String, String> mTitlePool = new HashMap<String, String>();
+
+	/** Parses one line of the response. Unparseable lines are skipped **/
+	public boolean onLine(String line) {
+		if (mCancelled)
+			return false;
+
+		// <chanid> <yyyy-MM-ddTHH:mm:ss> <title> -- <subtitle>
+		int firstSpace = line.indexOf(' ');
+		int secondSpace = firstSpace < 0 ? -1 : line.indexOf(' ',
+				firstSpace + 1);
+		if (secondSpace < 0)
+			return true;
+
+		int chanId;
+		long startTime;
+		try {
+			chanId = Integer.parseInt(line.substring(0, firstSpace));
+			startTime = packStartTime(line, firstSpace + 1, secondSpace);
+		} catch (NumberFormatException e) {
+			return true;
+		}
+		if (startTime < 0)
+			return true;
+
+		String title = line.substring(secondSpace + 1);
+		String subtitle = "";
+		int separator = title.indexOf(" -- ");
+		if (separator >= 0) {
+			subtitle = title.substring(separator + 4).trim();
+			title = title.substring(0, separator);
+		}
+		title = title.trim();
+
+		add(chanId, startTime, title, subtitle);
+		return true;
+	}
+
+	/** Stops parsing. The line handler tells the reader to stop as well **/
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public synchronized int size() {
+		return mCount;
+	}
+
+	/** Number of recordings that did not fit **/
+	public synchronized int getDroppedCount() {
+		return mDropped;
+	}
+
+	public synchronized int getChanId(int position) {
+		return mChanIds[position];
+	}
+
+	public synchronized String getTitle(int position) {
+		return mTitles[position];
+	}
+
+	public synchronized String getSubtitle(int position) {
+		return mSubtitles[position];
+	}
+
+	/** Returns the start time in the ISO form the frontend uses **/
+	public synchronized String getStartTime(int position) {
+		return unpackStartTime(mStartTimes[position]);
+	}
+
+	/** Returns the command that plays the recording at position **/
+	public String getPlayCommand(int position) {
+		return "program " + getChanId(position) + " "
+				+ getStartTime(position) + " resume";
+	}
+
+	private synchronized void add(int chanId, long startTime, String title,
+			String subtitle) {
+		if (mCount >= MAX_RECORDINGS) {
+			mDropped++;
+			return;
+		}
+		if (mCount == mChanIds.length)
+			grow();
+
+		String pooled = mTitlePool.get(title);
+		if (pooled == null) {
+			mTitlePool.put(title, title);
+			pooled = title;
+		}
+
+		mChanIds[mCount] = chanId;
+		mStartTimes[mCount] = startTime;
+		mTitles[mCount] = pooled;
+		mSubtitles[mCount] = subtitle;
+		mCount++;
+	}
+
+	private void grow() {
+		int capacity = Math.min(mChanIds.length * 2, MAX_RECORDINGS);
+		int[] chanIds = new int[capacity];
+		long[] startTimes = new long[capacity];
+		String[] titles = new String[capacity];
+		String[] subtitles = new String[capacity];
+		System.arraycopy(mChanIds, 0, chanIds, 0, mCount);
+		System.arraycopy(mStartTimes, 0, startTimes, 0, mCount);
+		System.arraycopy(mTitles, 0, titles, 0, mCount);
+		System.arraycopy(mSubtitles, 0, subtitles, 0, mCount);
+		mChanIds = chanIds;
+		mStartTimes = startTimes;
+		mTitles = titles;
+		mSubtitles = subtitles;
+	}
+
+	/**
+	 * Packs the digits of yyyy-MM-ddTHH:mm:ss into a single long
+	 * (yyyyMMddHHmmss). Returns -1 if the text is not in that form.
+	 */
+	private static long packStartTime(String text, int start, int end) {
+		if (end - start != 19)
+			return -1;
+		long packed = 0;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9')
+				packed = packed * 10 + (c - '0');
+			else if (c != '-' && c != ':' && c != 'T')
+				return -1;
+		}
+		return packed;
+	}
+
+	private static String unpackStartTime(long packed) {
+		char[] text = new char[19];
+		int[] separators = { 4, '-', 7, '-', 10, 'T', 13, ':', 16, ':' };
+		for (int i = 0; i < separators.length; i += 2)
+			text[separators[i]] = (char) separators[i + 1];
+		for (int i = text.length - 1; i >= 0; i--) {
+			if (text[i] != 0)
+				continue;
+			text[i] = (char) ('0' + packed % 10);
+			packed /= 10;
+		}
+		return new String(text);
+	}
+
+}
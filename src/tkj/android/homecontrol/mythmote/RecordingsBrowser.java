@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import tkj.android.homecontrol.mythmote.db.MythMoteRepository;
+import android.app.ListActivity;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Lists the recordings on the selected frontend's backend. The list fills in
+ * while "query recordings" is still streaming, and any listed recording can
+ * be played straight away.
+ */
+public class RecordingsBrowser extends ListActivity implements
+		MythCom.StatusChangedEventListener, MythCom.QueryCompleteListener {
+
+	private static final String QUERY_RECORDINGS = "query recordings";
+
+	/** How often newly parsed recordings are pushed to the list **/
+	private static final long REFRESH_INTERVAL = 250;
+
+	private final Handler mHandler = new Handler();
+	private final RecordingListing mListing = new RecordingListing();
+	private RecordingAdapter mAdapter;
+	private MythCom mComm;
+	private FrontendLocation mLocation;
+	private boolean mStarted = false;
+	private boolean mLoading = false;
+
+	private final Runnable mRefresh = new Runnable() {
+		public void run() {
+			publish();
+			if (mLoading)
+				mHandler.postDelayed(this, REFRESH_INTERVAL);
+		}
+	};
+
+	/** Called when the activity is first created. */
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		this.setTitle(R.string.recordings_str);
+
+		mAdapter = new RecordingAdapter();
+		this.setListAdapter(mAdapter);
+
+		// read the selected location
+		int selected = this.getSharedPreferences(
+				MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID,
+				Context.MODE_PRIVATE).getInt(
+				MythMotePreferences.PREF_SELECTED_LOCATION, -1);
+		new MythMoteRepository(this).getFrontendLocation(selected,
+				new MythMoteRepository.Callback<FrontendLocation>() {
+					public void onResult(FrontendLocation location) {
+						if (!isFinishing())
+							connect(location);
+					}
+				});
+	}
+
+	/**
+	 * Opens a session with the selected frontend once it has been loaded
+	 */
+	private void connect(FrontendLocation location) {
+		if (location == null) {
+			Toast.makeText(this, R.string.no_frontend_locations_defined_str,
+					Toast.LENGTH_SHORT).show();
+			this.finish();
+			return;
+		}
+
+		// use a session of our own so the listing does not hold up the remote
+		mLocation = location;
+		mComm = new MythCom(this);
+		mComm.SetOnStatusChangeHandler(this);
+		mComm.Connect(location, 0);
+	}
+
+	/**
+	 * Called when the activity is being destroyed
+	 */
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		mListing.cancel();
+		mLoading = false;
+		mHandler.removeCallbacks(mRefresh);
+		if (mComm != null)
+			mComm.Shutdown();
+	}
+
+	/**
+	 * Called when MythCom status changes. Starts the listing once connected.
+	 */
+	public void StatusChanged(String StatusMsg, int statusCode) {
+		if (statusCode == MythCom.STATUS_CONNECTED && !mStarted) {
+			mStarted = true;
+			mLoading = true;
+			mComm.StreamQuery(QUERY_RECORDINGS, mListing, this);
+			mHandler.postDelayed(mRefresh, REFRESH_INTERVAL);
+		} else if (statusCode == MythCom.STATUS_ERROR) {
+			this.setTitle(StatusMsg);
+		}
+	}
+
+	/**
+	 * Called when the listing has finished streaming
+	 */
+	public void QueryComplete(String command, String response) {
+		mLoading = false;
+		mHandler.removeCallbacks(mRefresh);
+		publish();
+
+		if (response == null && !this.isFinishing())
+			Toast.makeText(this, R.string.recordings_failed_str,
+					Toast.LENGTH_SHORT).show();
+	}
+
+	/**
+	 * Plays the selected recording. Playback starts immediately, even if the
+	 * rest of the listing has not arrived yet. The command goes through the
+	 * remote's session when it is connected to the same frontend, since
+	 * ours is shut down as soon as the browser closes.
+	 */
+	@Override
+	protected void onListItemClick(ListView l, View v, int position, long id) {
+		mListing.cancel();
+		MythCom session = MythComService.getSession(this);
+		FrontendLocation frontend = session.GetFrontend();
+		if (!session.IsConnected() || frontend == null
+				|| frontend.Port != mLocation.Port
+				|| !mLocation.Address.equals(frontend.Address))
+			session = mComm;
+		session.SendPlaybackCmd(mListing.getPlayCommand(position));
+		this.finish();
+	}
+
+	/** Shows the recordings parsed so far **/
+	private void publish() {
+		mAdapter.setCount(mListing.size());
+		this.setTitle(this.getString(mLoading ? R.string.recordings_loading_str
+				: R.string.recordings_count_str, mAdapter.getCount()));
+	}
+
+	/** Adapter over the recordings that have been published to the list **/
+	private class RecordingAdapter extends BaseAdapter {
+
+		private int mCount = 0;
+
+		void setCount(int count) {
+			if (count != mCount) {
+				mCount = count;
+				this.notifyDataSetChanged();
+			}
+		}
+
+		public int getCount() {
+			return mCount;
+		}
+
+		public Object getItem(int position) {
+			return mListing.getTitle(position);
+		}
+
+		public long getItemId(int position) {
+			return position;
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = convertView;
+			if (view == null)
+				view = getLayoutInflater().inflate(
+						android.R.layout.simple_list_item_2, parent, false);
+
+			String subtitle = mListing.getSubtitle(position);
+			((TextView) view.findViewById(android.R.id.text1))
+					.setText(mListing.getTitle(position));
+			((TextView) view.findViewById(android.R.id.text2))
+					.setText(subtitle.length() > 0 ? subtitle + " - "
+							+ mListing.getStartTime(position) : mListing
+							.getStartTime(position));
+			return view;
+		}
+	}
+
+}
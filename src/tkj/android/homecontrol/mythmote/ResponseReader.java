@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import android.os.SystemClock;
+
+/**
+ * Reads mythfrontend responses from the socket one line at a time. Every
+ * response is terminated by the "# " prompt, which is sent without a
+ * newline. Reads block on the socket with its SO_TIMEOUT set to what is
+ * left of the given timeout, so no read waits longer than that and a
+ * frontend that closed the connection is noticed at once.
+ */
+final class ResponseReader {
+
+	/** Receives the lines of a response as they arrive **/
+	public interface LineHandler {
+
+		/** Called for each line. Return false to stop reading the response **/
+		public boolean onLine(String line);
+	}
+
+	/** readResponse() results **/
+	static final int RESPONSE_COMPLETE = 0;
+	static final int RESPONSE_STOPPED = 1;
+	static final int RESPONSE_TIMEOUT = 2;
+
+	private static final int RESULT_TIMEOUT = 0;
+	private static final int RESULT_LINE = 1;
+	private static final int RESULT_PROMPT = 2;
+
+	private final Socket mSocket;
+	private final InputStream mInput;
+	private final byte[] mBuffer = new byte[4096];
+	private int mPosition;
+	private int mLimit;
+	private byte[] mLine = new byte[256];
+	private int mLineLength;
+	private boolean mLineComplete = true;
+
+	ResponseReader(Socket socket) throws IOException {
+		mSocket = socket;
+		mInput = socket.getInputStream();
+	}
+
+	/**
+	 * Reads one response and passes each line to the handler as it arrives.
+	 * The timeout applies to each wait for data, so long responses that keep
+	 * streaming are not cut off. Returns RESPONSE_COMPLETE once the prompt
+	 * has been read, RESPONSE_STOPPED if the handler stopped early (the rest
+	 * of the response is left unread) or RESPONSE_TIMEOUT.
+	 */
+	int readResponse(LineHandler handler, long timeout) throws IOException {
+		while (true) {
+			switch (next(SystemClock.uptimeMillis() + timeout)) {
+			case RESULT_PROMPT:
+				return RESPONSE_COMPLETE;
+			case RESULT_LINE:
+				if (handler != null && !handler.onLine(decodeLine()))
+					return RESPONSE_STOPPED;
+				break;
+			default:
+				return RESPONSE_TIMEOUT;
+			}
+		}
+	}
+
+	/**
+	 * Throws away the replies to commands that were sent without reading
+	 * their response. Waits up to timeout milliseconds in all for the
+	 * expected number of prompts and returns how many did not arrive.
+	 */
+	int skipResponses(int expected, long timeout) throws IOException {
+		final long deadline = SystemClock.uptimeMillis() + timeout;
+		while (expected > 0) {
+			int result = next(deadline);
+			if (result == RESULT_PROMPT)
+				expected--;
+			else if (result == RESULT_TIMEOUT)
+				break;
+		}
+		return expected;
+	}
+
+	/** Reads up to the next newline or prompt **/
+	private int next(long deadline) throws IOException {
+		if (mLineComplete) {
+			mLineLength = 0;
+			mLineComplete = false;
+		}
+		while (true) {
+			while (mPosition < mLimit) {
+				byte b = mBuffer[mPosition++];
+				if (b == '\n') {
+					if (mLineLength > 0 && mLine[mLineLength - 1] == '\r')
+						mLineLength--;
+					mLineComplete = true;
+					return RESULT_LINE;
+				}
+				append(b);
+				if (mLineLength == 2 && mLine[0] == '#' && mLine[1] == ' ') {
+					mLineComplete = true;
+					return RESULT_PROMPT;
+				}
+			}
+			if (!fill(deadline))
+				return RESULT_TIMEOUT;
+		}
+	}
+
+	/** Waits for data until the deadline. Returns false on timeout **/
+	private boolean fill(long deadline) throws IOException {
+		final long remaining = deadline - SystemClock.uptimeMillis();
+		if (remaining <= 0)
+			return false;
+		// a timeout of 0 would mean wait forever
+		mSocket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+
+		final int count;
+		try {
+			count = mInput.read(mBuffer, 0, mBuffer.length);
+		} catch (SocketTimeoutException e) {
+			return false;
+		}
+		if (count < 0)
+			throw new EOFException("Frontend closed the connection");
+		Metrics.BYTES_READ.add(count);
+		mPosition = 0;
+		mLimit = count;
+		return true;
+	}
+
+	private void append(byte b) {
+		if (mLineLength == mLine.length) {
+			byte[] grown = new byte[mLine.length * 2];
+			System.arraycopy(mLine, 0, grown, 0, mLineLength);
+			mLine = grown;
+		}
+		mLine[mLineLength++] = b;
+	}
+
+	private String decodeLine() {
+		try {
+			return new String(mLine, 0, mLineLength, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(mLine, 0, mLineLength);
+		}
+	}
+
+}
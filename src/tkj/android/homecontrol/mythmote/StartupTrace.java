@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records how long MythMote takes to start. begin() is called at the start
+ * of MythMote.onCreate() and every later mark() logs the time since then.
+ * Each marker is logged once per start, and the trace ends with a summary
+ * when the first connection is made. Filter the log with "MythMote.Startup".
+ */
+public final class StartupTrace {
+
+	public static final String TAG = "MythMote.Startup";
+
+	public static final String FIRST_TAB = "first-tab";
+	public static final String FIRST_FRAME = "first-frame";
+	public static final String LOCATION_LOADED = "location-loaded";
+	public static final String BINDINGS_LOADED = "bindings-loaded";
+	public static final String CONNECTED = "connected";
+
+	private static long sStart = -1;
+	private static final ArrayList<String> sNames = new ArrayList<String>();
+	private static final ArrayList<Long> sTimes = new ArrayList<Long>();
+
+	private StartupTrace() {
+	}
+
+	/**
+	 * Starts a new trace. Only the first call after the process starts or
+	 * after the previous trace has ended starts one, so recreating the
+	 * activity does not reset the clock.
+	 */
+	public static synchronized void begin() {
+		if (sStart != -1)
+			return;
+		sStart = SystemClock.uptimeMillis();
+		sNames.clear();
+		sTimes.clear();
+	}
+
+	/**
+	 * Logs the time from begin() to this marker. Markers already logged and
+	 * markers outside of a trace are ignored.
+	 */
+	public static synchronized void mark(String name) {
+		if (sStart == -1 || sNames.contains(name))
+			return;
+		long elapsed = SystemClock.uptimeMillis() - sStart;
+		sNames.add(name);
+		sTimes.add(elapsed);
+		Log.i(TAG, name + " +" + elapsed + "ms");
+
+		if (CONNECTED.equals(name))
+			end();
+	}
+
+	/**
+	 * Logs every marker of the trace on one line and stops tracing
+	 */
+	public static synchronized void end() {
+		if (sStart == -1)
+			return;
+		StringBuilder summary = new StringBuilder("startup:");
+		for (int i = 0; i < sNames.size(); i++)
+			summary.append(' ').append(sNames.get(i)).append('=').append(
+					sTimes.get(i)).append("ms");
+		Log.i(TAG, summary.toString());
+		sStart = -1;
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tkj.android.homecontrol.mythmote.db.MythMoteRepository;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager.MythKey;
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.os.Bundle;
+import android.widget.Toast;
+
+/**
+ * Lets the user pick the keys shown on a new widget. Bindings that need
+ * confirmation are left out, since the widget has no way to ask.
+ */
+public class WidgetConfigure extends Activity {
+
+	private int mAppWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
+	private final ArrayList<KeyBindingEntry> mEntries = new ArrayList<KeyBindingEntry>();
+	private boolean[] mChecked;
+
+	/** Called when the activity is first created. */
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		// backing out of the dialog must not leave a widget behind
+		this.setResult(RESULT_CANCELED);
+
+		Bundle extras = this.getIntent().getExtras();
+		if (extras != null)
+			mAppWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID,
+					AppWidgetManager.INVALID_APPWIDGET_ID);
+		if (mAppWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+			this.finish();
+			return;
+		}
+
+		int selected = this.getSharedPreferences(
+				MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID,
+				Context.MODE_PRIVATE).getInt(
+				MythMotePreferences.PREF_SELECTED_LOCATION, -1);
+		new MythMoteRepository(this).getKeyBindings(selected,
+				new MythMoteRepository.Callback<List<KeyBindingEntry>>() {
+					public void onResult(List<KeyBindingEntry> result) {
+						if (!isFinishing())
+							showKeys(result);
+					}
+				});
+	}
+
+	private void showKeys(List<KeyBindingEntry> bindings) {
+		mEntries.clear();
+		if (bindings != null) {
+			for (KeyBindingEntry entry : bindings) {
+				if (!entry.requiresConfirmation())
+					mEntries.add(entry);
+			}
+		}
+
+		// start from the keys the widget shows by default
+		String[] names = new String[mEntries.size()];
+		mChecked = new boolean[mEntries.size()];
+		for (int i = 0; i < names.length; i++) {
+			KeyBindingEntry entry = mEntries.get(i);
+			names[i] = entry.getFriendlyName();
+			for (MythKey key : MythMoteWidget.DEFAULT_KEYS) {
+				if (entry.getMythKey() == key)
+					mChecked[i] = true;
+			}
+		}
+
+		new AlertDialog.Builder(this).setTitle(R.string.widget_configure_str)
+				.setMultiChoiceItems(names, mChecked,
+						new DialogInterface.OnMultiChoiceClickListener() {
+							public void onClick(DialogInterface dialog,
+									int which, boolean isChecked) {
+								mChecked[which] = isChecked;
+							}
+						}).setPositiveButton(R.string.ok_str,
+						new DialogInterface.OnClickListener() {
+							public void onClick(DialogInterface dialog,
+									int which) {
+								save();
+							}
+						}).setNegativeButton(R.string.cancel_str,
+						new DialogInterface.OnClickListener() {
+							public void onClick(DialogInterface dialog,
+									int which) {
+								finish();
+							}
+						}).setOnCancelListener(
+						new DialogInterface.OnCancelListener() {
+							public void onCancel(DialogInterface dialog) {
+								finish();
+							}
+						}).show();
+	}
+
+	private void save() {
+		ArrayList<MythKey> keys = new ArrayList<MythKey>();
+		for (int i = 0; i < mChecked.length; i++) {
+			if (mChecked[i])
+				keys.add(mEntries.get(i).getMythKey());
+		}
+		if (keys.size() > MythMoteWidget.BUTTON_COUNT) {
+			Toast.makeText(this,
+					this.getString(R.string.widget_too_many_str,
+							MythMoteWidget.BUTTON_COUNT), Toast.LENGTH_LONG)
+					.show();
+			while (keys.size() > MythMoteWidget.BUTTON_COUNT)
+				keys.remove(keys.size() - 1);
+		}
+
+		if (keys.size() > 0)
+			MythMoteWidget.setKeys(this, mAppWidgetId, keys
+					.toArray(new MythKey[keys.size()]));
+		WidgetService.requestUpdate(this, new int[] { mAppWidgetId });
+
+		Intent result = new Intent();
+		result.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, mAppWidgetId);
+		this.setResult(RESULT_OK, result);
+		this.finish();
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.util.List;
+
+import tkj.android.homecontrol.mythmote.db.MythMoteRepository;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager.MythKey;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+/**
+ * Does the work of the home screen widget on a background thread: building
+ * the widget buttons and sending the command of a pressed button. A press is
+ * sent over a connected session if the app has one to the selected frontend,
+ * otherwise over a connection made just for that command. No activity is
+ * started either way. Bindings and locations are read through
+ * MythMoteRepository, on the app's one database thread.
+ */
+public class WidgetService extends IntentService {
+
+	public static final String ACTION_UPDATE = "tkj.android.homecontrol.mythmote.widget.UPDATE";
+	public static final String ACTION_SEND = "tkj.android.homecontrol.mythmote.widget.SEND";
+	public static final String EXTRA_KEY = "key";
+
+	public WidgetService() {
+		super("MythMote-widget");
+	}
+
+	/**
+	 * Asks the service to rebuild every widget, after a change to the key
+	 * bindings or the selected frontend
+	 */
+	public static void requestUpdate(Context context) {
+		int[] ids = AppWidgetManager.getInstance(context).getAppWidgetIds(
+				new ComponentName(context, MythMoteWidget.class));
+		if (ids != null && ids.length > 0)
+			requestUpdate(context, ids);
+	}
+
+	/** Asks the service to rebuild the given widgets **/
+	public static void requestUpdate(Context context, int[] appWidgetIds) {
+		Intent intent = new Intent(context, WidgetService.class);
+		intent.setAction(ACTION_UPDATE);
+		intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, appWidgetIds);
+		context.startService(intent);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (ACTION_SEND.equals(intent.getAction())) {
+			send(MythKey.getByName(intent.getStringExtra(EXTRA_KEY)));
+		} else if (ACTION_UPDATE.equals(intent.getAction())) {
+			int[] ids = intent
+					.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+			if (ids != null)
+				update(ids);
+		}
+	}
+
+	/**
+	 * Labels each widget's buttons with the names of their key bindings and
+	 * points them at this service
+	 */
+	private void update(int[] appWidgetIds) {
+		List<KeyBindingEntry> bindings = new MythMoteRepository(this)
+				.loadKeyBindings(getSelected());
+		AppWidgetManager widgets = AppWidgetManager.getInstance(this);
+
+		for (int id : appWidgetIds) {
+			RemoteViews views = new RemoteViews(getPackageName(),
+					R.layout.widget);
+			MythKey[] keys = MythMoteWidget.getKeys(this, id);
+			for (int slot = 0; slot < MythMoteWidget.BUTTON_COUNT; slot++) {
+				final int buttonId = MythMoteWidget.BUTTON_IDS[slot];
+				if (slot >= keys.length) {
+					views.setViewVisibility(buttonId, android.view.View.GONE);
+					continue;
+				}
+				KeyBindingEntry entry = find(bindings, keys[slot]);
+				views.setViewVisibility(buttonId, android.view.View.VISIBLE);
+				views.setTextViewText(buttonId, entry != null ? entry
+						.getFriendlyName() : keys[slot].name());
+				views.setOnClickPendingIntent(buttonId, sendIntent(id, slot,
+						keys[slot]));
+			}
+			widgets.updateAppWidget(id, views);
+		}
+	}
+
+	/**
+	 * Sends the command bound to the key at the selected frontend
+	 */
+	private void send(MythKey key) {
+		final long start = SystemClock.uptimeMillis();
+		final int selected = getSelected();
+		MythMoteRepository repository = new MythMoteRepository(this);
+		FrontendLocation location = repository.loadFrontendLocation(selected);
+		if (location == null) {
+			Log.w(MythMote.LOG_TAG, "Widget press without a selected frontend");
+			return;
+		}
+
+		KeyBindingEntry entry = find(repository.loadKeyBindings(selected), key);
+		MythCom session = MythCom.GetLiveSession(location.Address,
+				location.Port);
+		boolean sent;
+		if (session != null) {
+			// the app is connected already, use its socket
+			if (entry == null)
+				session.SendCommand(key.getDefaultCommand());
+			else if (entry.getSequence() != null)
+				session.SendSequence(entry.getSequence());
+			else
+				session.SendCommand(entry.getFrame());
+			sent = true;
+		} else {
+			sent = MythCom.SendOnce(location, entry != null
+					&& entry.getSequence() != null ? entry.getSequence()
+					: CommandSequence.parse(entry != null ? entry.getCommand()
+							: key.getDefaultCommand()));
+		}
+
+		Metrics.WIDGET_SEND_TIME.record(SystemClock.uptimeMillis() - start);
+		if (!sent)
+			Metrics.WIDGET_SEND_FAILURES.inc();
+	}
+
+	/**
+	 * Each button gets its own pending intent; the data uri keeps them from
+	 * being merged into one
+	 */
+	private PendingIntent sendIntent(int appWidgetId, int slot, MythKey key) {
+		Intent intent = new Intent(this, WidgetService.class);
+		intent.setAction(ACTION_SEND);
+		intent.setData(Uri.parse("mythmote://widget/" + appWidgetId + "/"
+				+ slot));
+		intent.putExtra(EXTRA_KEY, key.name());
+		return PendingIntent.getService(this, 0, intent,
+				PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	private int getSelected() {
+		return getSharedPreferences(
+				MythMotePreferences.MYTHMOTE_SHARED_PREFERENCES_ID,
+				MODE_PRIVATE).getInt(MythMotePreferences.PREF_SELECTED_LOCATION,
+				-1);
+	}
+
+	/** Returns the binding for the key, or null if there is none or the
+	 * bindings could not be loaded **/
+	private static KeyBindingEntry find(List<KeyBindingEntry> bindings,
+			MythKey key) {
+		if (bindings == null)
+			return null;
+		for (KeyBindingEntry entry : bindings) {
+			if (entry.getMythKey() == key)
+				return entry;
+		}
+		return null;
+	}
+
+}
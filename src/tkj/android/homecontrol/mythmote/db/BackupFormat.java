@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2010 Rob Elsner
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote.db;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import tkj.android.homecontrol.mythmote.FrontendLocation;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager.MythKey;
+import android.util.Log;
+
+/**
+ * Text format used to move frontend locations and key bindings between
+ * devices. The first line is "mythmote-backup &lt;version&gt;", followed by
+ * one tab separated row per line:
+ *
+ * <pre>
+ * f  id  name  address  port
+ * k  location-id  key  confirm  friendly-name  command
+ * </pre>
+ *
+ * Key bindings refer to frontends by the id written in the same file, -1
+ * meaning a global binding. Tabs, new lines and backslashes inside values are
+ * escaped with a backslash. Lines starting with '#' are ignored.
+ */
+public final class BackupFormat {
+
+	public static final String MAGIC = "mythmote-backup";
+	public static final int VERSION = 1;
+
+	static final String FRONTEND_ROW = "f";
+	static final String KEY_BINDING_ROW = "k";
+
+	private static final char SEPARATOR = '\t';
+
+	/**
+	 * Rows read from a backup file, with file ids still in place
+	 */
+	static final class Contents {
+		final List<FrontendLocation> frontends = new ArrayList<FrontendLocation>();
+		final List<KeyBindingEntry> keyBindings = new ArrayList<KeyBindingEntry>();
+		int skipped;
+	}
+
+	/**
+	 * Counts reported after an export or import
+	 */
+	public static final class Result {
+		public int Frontends;
+		public int KeyBindings;
+		public int Skipped;
+	}
+
+	private BackupFormat() {
+	}
+
+	static void writeHeader(Writer out) throws IOException {
+		out.write(MAGIC);
+		out.write(SEPARATOR);
+		out.write(Integer.toString(VERSION));
+		out.write('\n');
+	}
+
+	static void writeFrontend(Writer out, int id, String name,
+			String address, int port) throws IOException {
+		out.write(FRONTEND_ROW);
+		writeField(out, Integer.toString(id));
+		writeField(out, name);
+		writeField(out, address);
+		writeField(out, Integer.toString(port));
+		out.write('\n');
+	}
+
+	static void writeKeyBinding(Writer out, int locationId, String mythKey,
+			boolean confirm, String friendlyName, String command)
+			throws IOException {
+		out.write(KEY_BINDING_ROW);
+		writeField(out, Integer.toString(locationId));
+		writeField(out, mythKey);
+		writeField(out, confirm ? "1" : "0");
+		writeField(out, friendlyName);
+		writeField(out, command);
+		out.write('\n');
+	}
+
+	/**
+	 * Reads and validates a whole backup. Rows that are malformed or refer to
+	 * an unknown frontend are skipped and counted, the rest are returned.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or is not a backup of a version
+	 *             this build understands
+	 */
+	static Contents read(BufferedReader in) throws IOException {
+		String header = in.readLine();
+		if (null == header)
+			throw new IOException("Empty backup file");
+		String[] fields = split(header);
+		if (fields.length != 2 || !MAGIC.equals(fields[0]))
+			throw new IOException("Not a mythmote backup");
+		int version = parseInt(fields[1], -1);
+		if (version < 1 || version > VERSION)
+			throw new IOException("Unsupported backup version " + fields[1]);
+
+		Contents contents = new Contents();
+		HashSet<Integer> frontendIds = new HashSet<Integer>();
+		int lineNumber = 1;
+		String line;
+		while (null != (line = in.readLine())) {
+			lineNumber++;
+			if (line.length() == 0 || line.charAt(0) == '#')
+				continue;
+
+			fields = split(line);
+			boolean valid = false;
+			if (FRONTEND_ROW.equals(fields[0])) {
+				FrontendLocation location = readFrontend(fields);
+				if (null != location && !frontendIds.contains(location.ID)) {
+					frontendIds.add(location.ID);
+					contents.frontends.add(location);
+					valid = true;
+				}
+			} else if (KEY_BINDING_ROW.equals(fields[0])) {
+				KeyBindingEntry entry = readKeyBinding(fields);
+				if (null != entry
+						&& (!entry.isLocationSpecific() || frontendIds
+								.contains(entry.getLocationId()))) {
+					contents.keyBindings.add(entry);
+					valid = true;
+				}
+			}
+
+			if (!valid) {
+				contents.skipped++;
+				Log.w(MythMoteDbHelper.TAG, "Skipped backup line " + lineNumber);
+			}
+		}
+		return contents;
+	}
+
+	private static FrontendLocation readFrontend(String[] fields) {
+		if (fields.length != 5)
+			return null;
+		FrontendLocation location = new FrontendLocation();
+		location.ID = parseInt(fields[1], -1);
+		location.Name = fields[2].trim();
+		location.Address = fields[3].trim();
+		location.Port = parseInt(fields[4], -1);
+		if (location.ID < 0 || location.Name.length() == 0
+				|| location.Address.length() == 0 || location.Port <= 0
+				|| location.Port > 65535)
+			return null;
+		return location;
+	}
+
+	private static KeyBindingEntry readKeyBinding(String[] fields) {
+		if (fields.length != 6)
+			return null;
+		int locationId = parseInt(fields[1], Integer.MIN_VALUE);
+		if (locationId < MythMoteDbHelper.GLOBAL_LOCATION_ID)
+			return null;
+		MythKey mythKey;
+		try {
+			mythKey = MythKey.valueOf(fields[2]);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (!"0".equals(fields[3]) && !"1".equals(fields[3]))
+			return null;
+		return new KeyBindingEntry(-1, fields[4], mythKey, fields[5], "1"
+				.equals(fields[3]), locationId);
+	}
+
+	private static void writeField(Writer out, String value)
+			throws IOException {
+		out.write(SEPARATOR);
+		if (null == value)
+			return;
+		final int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			default:
+				out.write(c);
+			}
+		}
+	}
+
+	/**
+	 * Splits a line on tabs and removes the escaping from each field
+	 */
+	private static String[] split(String line) {
+		ArrayList<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		final int length = line.length();
+		for (int i = 0; i < length; i++) {
+			char c = line.charAt(i);
+			if (c == SEPARATOR) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\\' && i + 1 < length) {
+				char next = line.charAt(++i);
+				field.append(next == 't' ? '\t' : next == 'n' ? '\n'
+						: next == 'r' ? '\r' : next);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	private static int parseInt(String value, int fallback) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+}
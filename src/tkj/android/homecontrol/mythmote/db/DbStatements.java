@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2010 Rob Elsner
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote.db;
+
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.FRONTEND_TABLE;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_COMMAND;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_FRIENDLY_NAME;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_LOCATION_ID;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_REQUIRE_CONFIRMATION;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_ROWID;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_UI_KEY;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_ADDRESS;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_BINDINGS_TABLE;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_NAME;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_PORT;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_ROWID;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Precompiled insert, update and delete statements for the frontends and
+ * keybindings tables. Each statement is compiled the first time it is used
+ * and then reused for the life of the database connection.
+ */
+final class DbStatements {
+
+	private final SQLiteDatabase db;
+
+	private SQLiteStatement insertFrontend;
+	private SQLiteStatement updateFrontend;
+	private SQLiteStatement deleteFrontend;
+	private SQLiteStatement deleteAllFrontends;
+	private SQLiteStatement insertKeyBinding;
+	private SQLiteStatement updateKeyBinding;
+	private SQLiteStatement deleteKeyBinding;
+	private SQLiteStatement deleteLocationKeyBindings;
+	private SQLiteStatement deleteAllKeyBindings;
+	private SQLiteStatement changes;
+
+	DbStatements(final SQLiteDatabase db) {
+		this.db = db;
+	}
+
+	/**
+	 * @return the new row id or -1 if the insert failed
+	 */
+	synchronized long insertFrontend(String name, String address, int port) {
+		if (null == insertFrontend)
+			insertFrontend = db.compileStatement("insert into "
+					+ FRONTEND_TABLE + " (" + KEY_NAME + ", " + KEY_ADDRESS
+					+ ", " + KEY_PORT + ") values (?, ?, ?)");
+		bindFrontend(insertFrontend, name, address, port);
+		return insertFrontend.executeInsert();
+	}
+
+	/**
+	 * @return the number of rows changed
+	 */
+	synchronized int updateFrontend(long rowId, String name, String address,
+			int port) {
+		if (null == updateFrontend)
+			updateFrontend = db.compileStatement("update " + FRONTEND_TABLE
+					+ " set " + KEY_NAME + " = ?, " + KEY_ADDRESS + " = ?, "
+					+ KEY_PORT + " = ? where " + KEY_ROWID + " = ?");
+		bindFrontend(updateFrontend, name, address, port);
+		updateFrontend.bindLong(4, rowId);
+		updateFrontend.execute();
+		return changes();
+	}
+
+	/**
+	 * @return the number of rows deleted
+	 */
+	synchronized int deleteFrontend(long rowId) {
+		if (null == deleteFrontend)
+			deleteFrontend = db.compileStatement("delete from "
+					+ FRONTEND_TABLE + " where " + KEY_ROWID + " = ?");
+		deleteFrontend.bindLong(1, rowId);
+		deleteFrontend.execute();
+		return changes();
+	}
+
+	/**
+	 * @return the number of rows deleted
+	 */
+	synchronized int deleteAllFrontends() {
+		if (null == deleteAllFrontends)
+			deleteAllFrontends = db.compileStatement("delete from "
+					+ FRONTEND_TABLE);
+		deleteAllFrontends.execute();
+		return changes();
+	}
+
+	/**
+	 * @return the new row id or -1 if the insert failed
+	 */
+	synchronized long insertKeyBinding(final KeyBindingEntry entry) {
+		if (null == insertKeyBinding)
+			insertKeyBinding = db.compileStatement("insert into "
+					+ KEY_BINDINGS_TABLE + " (" + KEYBINDINGS_COMMAND + ", "
+					+ KEYBINDINGS_UI_KEY + ", " + KEYBINDINGS_FRIENDLY_NAME
+					+ ", " + KEYBINDINGS_REQUIRE_CONFIRMATION + ", "
+					+ KEYBINDINGS_LOCATION_ID + ") values (?, ?, ?, ?, ?)");
+		bindKeyBinding(insertKeyBinding, entry);
+		return insertKeyBinding.executeInsert();
+	}
+
+	/**
+	 * @return the number of rows changed
+	 */
+	synchronized int updateKeyBinding(final KeyBindingEntry entry) {
+		if (null == updateKeyBinding)
+			updateKeyBinding = db.compileStatement("update "
+					+ KEY_BINDINGS_TABLE + " set " + KEYBINDINGS_COMMAND
+					+ " = ?, " + KEYBINDINGS_UI_KEY + " = ?, "
+					+ KEYBINDINGS_FRIENDLY_NAME + " = ?, "
+					+ KEYBINDINGS_REQUIRE_CONFIRMATION + " = ?, "
+					+ KEYBINDINGS_LOCATION_ID + " = ? where "
+					+ KEYBINDINGS_ROWID + " = ?");
+		bindKeyBinding(updateKeyBinding, entry);
+		updateKeyBinding.bindLong(6, entry.getRowID());
+		updateKeyBinding.execute();
+		return changes();
+	}
+
+	/**
+	 * @return the number of rows deleted
+	 */
+	synchronized int deleteKeyBinding(long rowId) {
+		if (null == deleteKeyBinding)
+			deleteKeyBinding = db.compileStatement("delete from "
+					+ KEY_BINDINGS_TABLE + " where " + KEYBINDINGS_ROWID
+					+ " = ?");
+		deleteKeyBinding.bindLong(1, rowId);
+		deleteKeyBinding.execute();
+		return changes();
+	}
+
+	/**
+	 * Deletes the bindings that belong to one frontend location
+	 * 
+	 * @return the number of rows deleted
+	 */
+	synchronized int deleteLocationKeyBindings(long locationId) {
+		if (null == deleteLocationKeyBindings)
+			deleteLocationKeyBindings = db.compileStatement("delete from "
+					+ KEY_BINDINGS_TABLE + " where " + KEYBINDINGS_LOCATION_ID
+					+ " = ?");
+		deleteLocationKeyBindings.bindLong(1, locationId);
+		deleteLocationKeyBindings.execute();
+		return changes();
+	}
+
+	/**
+	 * @return the number of rows deleted
+	 */
+	synchronized int deleteAllKeyBindings() {
+		if (null == deleteAllKeyBindings)
+			deleteAllKeyBindings = db.compileStatement("delete from "
+					+ KEY_BINDINGS_TABLE);
+		deleteAllKeyBindings.execute();
+		return changes();
+	}
+
+	/**
+	 * Releases all compiled statements
+	 */
+	synchronized void close() {
+		SQLiteStatement[] statements = { insertFrontend, updateFrontend,
+				deleteFrontend, deleteAllFrontends, insertKeyBinding,
+				updateKeyBinding, deleteKeyBinding, deleteLocationKeyBindings,
+				deleteAllKeyBindings, changes };
+		for (SQLiteStatement statement : statements) {
+			if (null != statement)
+				statement.close();
+		}
+		insertFrontend = updateFrontend = deleteFrontend = null;
+		deleteAllFrontends = null;
+		insertKeyBinding = updateKeyBinding = deleteKeyBinding = null;
+		deleteLocationKeyBindings = deleteAllKeyBindings = changes = null;
+	}
+
+	/**
+	 * Rows changed by the last statement. SQLiteStatement only reports this
+	 * itself on newer platforms.
+	 */
+	private int changes() {
+		if (null == changes)
+			changes = db.compileStatement("select changes()");
+		return (int) changes.simpleQueryForLong();
+	}
+
+	private static void bindFrontend(SQLiteStatement statement, String name,
+			String address, int port) {
+		bindText(statement, 1, name);
+		bindText(statement, 2, address);
+		statement.bindLong(3, port);
+	}
+
+	private static void bindKeyBinding(SQLiteStatement statement,
+			final KeyBindingEntry entry) {
+		bindText(statement, 1, entry.getCommand());
+		statement.bindString(2, entry.getMythKey().name());
+		bindText(statement, 3, entry.getFriendlyName());
+		statement.bindLong(4, entry.requiresConfirmation() ? 1 : 0);
+		statement.bindLong(5, entry.getLocationId());
+	}
+
+	/**
+	 * Binds the value, or NULL for a null value; bindString() throws on null
+	 * where ContentValues used to store NULL
+	 */
+	private static void bindText(SQLiteStatement statement, int index,
+			String value) {
+		if (null == value)
+			statement.bindNull(index);
+		else
+			statement.bindString(index, value);
+	}
+
+}
@@ -16,9 +16,10 @@
 
 package tkj.android.homecontrol.mythmote.db;
 
+import java.util.List;
+
 import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
 import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -26,7 +27,7 @@ import android.util.Log;
 
 public class MythMoteDbHelper extends SQLiteOpenHelper {
 	public static final String DATABASE_NAME = "mythmotedata";
-	public static final int DATABASE_VERSION = 2;
+	public static final int DATABASE_VERSION = 3;
 	public static final String TAG = "MythMoteDB";
 
 	/**
@@ -42,6 +43,9 @@ public class MythMoteDbHelper extends SQLiteOpenHelper {
 	public static final String KEYBINDINGS_FRIENDLY_NAME = "friendly_name";
 	// to enable a dialog to popup confirming the button action
 	public static final String KEYBINDINGS_REQUIRE_CONFIRMATION = "req_confirm";
+	// frontend the binding belongs to, GLOBAL_LOCATION_ID for the defaults
+	public static final String KEYBINDINGS_LOCATION_ID = "location_id";
+	public static final int GLOBAL_LOCATION_ID = -1;
 
 	public static final String FRONTEND_TABLE = "frontends";
 	public static final String KEY_BINDINGS_TABLE = "keybindings";
@@ -58,47 +62,84 @@ public class MythMoteDbHelper extends SQLiteOpenHelper {
 			+ " integer primary key autoincrement, " + KEYBINDINGS_COMMAND
 			+ " text not null, " + KEYBINDINGS_UI_KEY + " text not null, "
 			+ KEYBINDINGS_FRIENDLY_NAME + " text not null, "
-			+ KEYBINDINGS_REQUIRE_CONFIRMATION + " INTEGER not null );";
+			+ KEYBINDINGS_REQUIRE_CONFIRMATION + " INTEGER not null, "
+			+ KEYBINDINGS_LOCATION_ID + " INTEGER not null default "
+			+ GLOBAL_LOCATION_ID + " );";
+
+	private static final String ADD_KEY_BINDINGS_LOCATION = "alter table "
+			+ KEY_BINDINGS_TABLE + " add column " + KEYBINDINGS_LOCATION_ID
+			+ " INTEGER not null default " + GLOBAL_LOCATION_ID;
+
+	private static final String CREATE_KEY_BINDINGS_LOCATION_INDEX = "create index "
+			+ KEY_BINDINGS_TABLE
+			+ "_location on "
+			+ KEY_BINDINGS_TABLE
+			+ " (" + KEYBINDINGS_LOCATION_ID + ");";
+
+	private static MythMoteDbHelper sInstance;
 
 	public MythMoteDbHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 	}
 
+	/**
+	 * Returns the helper shared by the whole process. It holds on to the
+	 * application context only, never an activity.
+	 */
+	public static synchronized MythMoteDbHelper getInstance(Context context) {
+		if (null == sInstance)
+			sInstance = new MythMoteDbHelper(context.getApplicationContext());
+		return sInstance;
+	}
+
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		db.execSQL(CREATE_FRONTENDS_TABLE);
 		db.execSQL(CREATE_KEY_BINDINGS_TABLE);
+		db.execSQL(CREATE_KEY_BINDINGS_LOCATION_INDEX);
 		createDefaultEntries(db);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 		Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-				+ newVersion + ", which will destroy all old data");
-		if (1 == oldVersion && 2 == newVersion) {
+				+ newVersion);
+		if (1 == oldVersion) {
 			// we are just adding key bindings in this case
 			db.execSQL(CREATE_KEY_BINDINGS_TABLE);
+			db.execSQL(CREATE_KEY_BINDINGS_LOCATION_INDEX);
 			createDefaultEntries(db);
 			db.setVersion(newVersion);
+		} else if (2 == oldVersion) {
+			// existing bindings become the global defaults
+			db.execSQL(ADD_KEY_BINDINGS_LOCATION);
+			db.execSQL(CREATE_KEY_BINDINGS_LOCATION_INDEX);
+			db.setVersion(newVersion);
 		} else {
+			Log.w(TAG, "Unknown database version, destroying all old data");
 			db.execSQL("DROP TABLE IF EXISTS frontends");
 			db.execSQL("DROP TABLE IF EXISTS keybindings");
 			onCreate(db);
 		}
 	}
 
+	/**
+	 * Inserts the default key bindings in one transaction through a single
+	 * compiled statement
+	 */
 	private static void createDefaultEntries(SQLiteDatabase db) {
-		for (KeyBindingEntry entry : KeyBindingManager.MythKey
-				.createDefaultList()) {
-			ContentValues values = new ContentValues();
-			values.put(KEYBINDINGS_COMMAND, entry.getCommand());
-			values.put(KEYBINDINGS_UI_KEY, entry.getMythKey().name());
-			values.put(KEYBINDINGS_FRIENDLY_NAME, entry.getFriendlyName());
-			values.put(KEYBINDINGS_REQUIRE_CONFIRMATION,
-					entry.requiresConfirmation() ? 1 : 0);
-			Log.d("KBDA", "Adding default entry " + entry.getFriendlyName()
-					+ " to " + entry.getCommand());
-			db.insert(KEY_BINDINGS_TABLE, null, values);
+		List<KeyBindingEntry> entries = KeyBindingManager.MythKey
+				.createDefaultList();
+		DbStatements statements = new DbStatements(db);
+		db.beginTransaction();
+		try {
+			for (KeyBindingEntry entry : entries)
+				statements.insertKeyBinding(entry);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			statements.close();
 		}
+		Log.d(TAG, "Added " + entries.size() + " default key bindings");
 	}
 }
@@ -19,6 +19,7 @@ package tkj.android.homecontrol.mythmote.db;
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.FRONTEND_TABLE;
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_COMMAND;
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_FRIENDLY_NAME;
+import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_LOCATION_ID;
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_REQUIRE_CONFIRMATION;
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_ROWID;
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEYBINDINGS_UI_KEY;
@@ -27,36 +28,70 @@ import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_BINDINGS_
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_NAME;
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_PORT;
 import static tkj.android.homecontrol.mythmote.db.MythMoteDbHelper.KEY_ROWID;
-import tkj.android.homecontrol.mythmote.R;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import tkj.android.homecontrol.mythmote.FrontendLocation;
 import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
 import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager.MythKey;
 import tkj.android.homecontrol.mythmote.keymanager.KeyMapBinder;
-import android.app.AlertDialog;
-import android.content.ContentValues;
 import android.content.Context;
-import android.content.DialogInterface;
-import android.content.DialogInterface.OnClickListener;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
 public class MythMoteDbManager {
+
+	/** Key bindings shared by every manager, null until first loaded **/
+	private static volatile List<KeyBindingEntry> sKeyBindings;
+
+	/** Bindings per frontend location, built from sKeyBindings **/
+	private static final HashMap<Integer, List<KeyBindingEntry>> sOverlays = new HashMap<Integer, List<KeyBindingEntry>>();
+
+	/** The connection shared by every manager in the process **/
+	private static SQLiteDatabase sDatabase;
+	private static DbStatements sStatements;
+
 	private SQLiteDatabase db;
-	private MythMoteDbHelper dbHelper;
+	private DbStatements statements;
 	private final Context context;
 
 	public MythMoteDbManager(final Context ctx) {
 		this.context = ctx;
 	}
 
+	/**
+	 * Attaches this manager to the process wide database connection. The
+	 * connection is opened, and the schema checked, only the first time.
+	 */
 	public void open() {
-		this.dbHelper = new MythMoteDbHelper(context);
-		this.db = this.dbHelper.getWritableDatabase();
+		synchronized (MythMoteDbManager.class) {
+			if (null == sDatabase || !sDatabase.isOpen()) {
+				sDatabase = MythMoteDbHelper.getInstance(context)
+						.getWritableDatabase();
+				enableWriteAheadLogging(sDatabase);
+				sStatements = new DbStatements(sDatabase);
+			}
+			this.db = sDatabase;
+			this.statements = sStatements;
+		}
 	}
 
+	/**
+	 * Kept for symmetry with open(). The shared connection stays open for
+	 * the life of the process, so there is nothing to release.
+	 */
 	public void close() {
-		dbHelper.close();
 	}
 
 	/**
@@ -71,12 +106,11 @@ public class MythMoteDbManager {
 	 * @return rowId or -1 if failed
 	 */
 	public long createFrontendLocation(String name, String address, int port) {
-		ContentValues initialValues = new ContentValues();
-		initialValues.put(KEY_NAME, name);
-		initialValues.put(KEY_ADDRESS, address);
-		initialValues.put(KEY_PORT, port);
-
-		return db.insert(FRONTEND_TABLE, null, initialValues);
+		long rowId = statements.insertFrontend(name, address, port);
+		if (rowId != -1)
+			MythMoteRepository.notifyFrontendSaved(frontend((int) rowId, name,
+					address, port));
+		return rowId;
 	}
 
 	/**
@@ -87,8 +121,22 @@ public class MythMoteDbManager {
 	 * @return true if deleted, false otherwise
 	 */
 	public boolean deleteFrontendLocation(long rowId) {
-
-		return db.delete(FRONTEND_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+		boolean deleted;
+		int bindings;
+		db.beginTransaction();
+		try {
+			// the location's own key bindings go with it
+			bindings = statements.deleteLocationKeyBindings(rowId);
+			deleted = statements.deleteFrontend(rowId) > 0;
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (bindings > 0)
+			invalidateSnapshot();
+		if (deleted)
+			MythMoteRepository.notifyFrontendDeleted((int) rowId);
+		return deleted;
 	}
 
 	/**
@@ -102,6 +150,31 @@ public class MythMoteDbManager {
 				KEY_ADDRESS, KEY_PORT }, null, null, null, null, null);
 	}
 
+	/**
+	 * Return all frontend locations in the order they were added
+	 */
+	public List<FrontendLocation> getAllFrontendLocations() {
+		ArrayList<FrontendLocation> locations = new ArrayList<FrontendLocation>();
+		Cursor cursor = fetchAllFrontendLocations();
+		if (cursor == null)
+			return locations;
+
+		final int idIndex = cursor.getColumnIndex(KEY_ROWID);
+		final int nameIndex = cursor.getColumnIndex(KEY_NAME);
+		final int addressIndex = cursor.getColumnIndex(KEY_ADDRESS);
+		final int portIndex = cursor.getColumnIndex(KEY_PORT);
+		while (cursor.moveToNext()) {
+			FrontendLocation location = new FrontendLocation();
+			location.ID = cursor.getInt(idIndex);
+			location.Name = cursor.getString(nameIndex);
+			location.Address = cursor.getString(addressIndex);
+			location.Port = cursor.getInt(portIndex);
+			locations.add(location);
+		}
+		cursor.close();
+		return locations;
+	}
+
 	/**
 	 * Return a Cursor positioned at the note that matches the given rowId
 	 * 
@@ -119,20 +192,37 @@ public class MythMoteDbManager {
 				mCursor.moveToFirst();
 			}
 		} catch (SQLException e) {
-			AlertDialog.Builder builder = new AlertDialog.Builder(context);
-			builder.setTitle("DataBase Error");
-			builder.setMessage(e.getLocalizedMessage());
-			builder.setNeutralButton(R.string.ok_str, new OnClickListener() {
+			// also called from the widget service, so no dialog here
+			Log.e(MythMoteDbHelper.TAG, "Could not read frontend location "
+					+ rowId, e);
+		}
+		return mCursor;
 
-				public void onClick(DialogInterface dialog, int which) {
-					// TODO Auto-generated method stub
+	}
 
-				}
-			});
+	/**
+	 * Return the frontend location with the given rowId
+	 * 
+	 * @param rowId
+	 *            id of location to retrieve
+	 * @return the location, or null if it does not exist
+	 */
+	public FrontendLocation getFrontendLocation(long rowId) {
+		Cursor cursor = fetchFrontendLocation(rowId);
+		if (cursor == null)
+			return null;
 
+		FrontendLocation location = null;
+		if (cursor.getCount() > 0) {
+			location = new FrontendLocation();
+			location.ID = cursor.getInt(cursor.getColumnIndex(KEY_ROWID));
+			location.Name = cursor.getString(cursor.getColumnIndex(KEY_NAME));
+			location.Address = cursor.getString(cursor
+					.getColumnIndex(KEY_ADDRESS));
+			location.Port = cursor.getInt(cursor.getColumnIndex(KEY_PORT));
 		}
-		return mCursor;
-
+		cursor.close();
+		return location;
 	}
 
 	/**
@@ -151,75 +241,412 @@ public class MythMoteDbManager {
 	public boolean updateFrontendLocation(long rowId, String name,
 			String address, int port) {
 		open();
-		ContentValues args = new ContentValues();
-		args.put(KEY_NAME, name);
-		args.put(KEY_ADDRESS, address);
-		args.put(KEY_PORT, port);
-
-		int rows = db.update(FRONTEND_TABLE, args, KEY_ROWID + "=" + rowId,
-				null);
-		close();
+		int rows = statements.updateFrontend(rowId, name, address, port);
+		if (rows > 0)
+			MythMoteRepository.notifyFrontendSaved(frontend((int) rowId, name,
+					address, port));
 		return rows > 0;
 	}
 
 	public boolean save(final KeyBindingEntry entry) {
+		return saveKeyBinding(entry) != null;
+	}
+
+	/**
+	 * Inserts or updates the entry.
+	 * 
+	 * @return the saved entry, with its new row id if it was inserted, or
+	 *         null if saving failed
+	 */
+	public KeyBindingEntry saveKeyBinding(final KeyBindingEntry entry) {
 		open();
-		ContentValues values = new ContentValues();
-		values.put(KEYBINDINGS_COMMAND, entry.getCommand());
-		values.put(KEYBINDINGS_UI_KEY, entry.getMythKey().name());
-		values.put(KEYBINDINGS_FRIENDLY_NAME, entry.getFriendlyName());
-		values.put(KEYBINDINGS_REQUIRE_CONFIRMATION,
-				entry.requiresConfirmation() ? 1 : 0);
 		Log.d("KBDA", "Adding entry " + entry.getFriendlyName() + " to "
 				+ entry.getCommand());
-		boolean success = false;
-		if (entry.getRowID() != -1)
-			success = db.update(KEY_BINDINGS_TABLE, values,
-					MythMoteDbHelper.KEYBINDINGS_ROWID + " = ?",
-					new String[] { String.format("%d", entry.getRowID()) }) == 1;
-		else
-			success = db.insert(KEY_BINDINGS_TABLE, null, values) != -1;
-		close();
-		return success;
+		KeyBindingEntry saved = entry;
+		if (entry.getRowID() != -1) {
+			if (statements.updateKeyBinding(entry) != 1)
+				return null;
+		} else {
+			long rowId = statements.insertKeyBinding(entry);
+			if (rowId == -1)
+				return null;
+			saved = new KeyBindingEntry((int) rowId, entry.getFriendlyName(),
+					entry.getMythKey(), entry.getCommand(), entry
+							.requiresConfirmation(), entry.getLocationId());
+		}
+		updateSnapshot(saved, false);
+		return saved;
+	}
+
+	/**
+	 * Deletes a saved key binding
+	 * 
+	 * @return true if the binding was deleted
+	 */
+	public boolean deleteKeyBinding(final KeyBindingEntry entry) {
+		open();
+		boolean deleted = statements.deleteKeyBinding(entry.getRowID()) > 0;
+		if (deleted)
+			updateSnapshot(entry, true);
+		return deleted;
+	}
+
+	/**
+	 * Writes every frontend location and key binding to the backup as rows
+	 * are read, without building the lists in memory first
+	 * 
+	 * @return the number of rows written
+	 */
+	public BackupFormat.Result exportBackup(final Writer out)
+			throws IOException {
+		open();
+		BackupFormat.Result result = new BackupFormat.Result();
+		HashSet<Integer> locationIds = new HashSet<Integer>();
+		BackupFormat.writeHeader(out);
+
+		Cursor cursor = fetchAllFrontendLocations();
+		try {
+			final int idIndex = cursor.getColumnIndex(KEY_ROWID);
+			final int nameIndex = cursor.getColumnIndex(KEY_NAME);
+			final int addressIndex = cursor.getColumnIndex(KEY_ADDRESS);
+			final int portIndex = cursor.getColumnIndex(KEY_PORT);
+			while (cursor.moveToNext()) {
+				int id = cursor.getInt(idIndex);
+				BackupFormat.writeFrontend(out, id, cursor
+						.getString(nameIndex), cursor.getString(addressIndex),
+						cursor.getInt(portIndex));
+				locationIds.add(id);
+				result.Frontends++;
+			}
+		} finally {
+			cursor.close();
+		}
+
+		cursor = db.query(KEY_BINDINGS_TABLE, new String[] {
+				KEYBINDINGS_LOCATION_ID, KEYBINDINGS_UI_KEY,
+				KEYBINDINGS_REQUIRE_CONFIRMATION, KEYBINDINGS_FRIENDLY_NAME,
+				KEYBINDINGS_COMMAND }, null, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				int locationId = cursor.getInt(0);
+				// leave out bindings left behind by a deleted frontend
+				if (locationId != MythMoteDbHelper.GLOBAL_LOCATION_ID
+						&& !locationIds.contains(locationId))
+					continue;
+				BackupFormat.writeKeyBinding(out, locationId, cursor
+						.getString(1), cursor.getInt(2) == 1, cursor
+						.getString(3), cursor.getString(4));
+				result.KeyBindings++;
+			}
+		} finally {
+			cursor.close();
+		}
+		out.flush();
+		return result;
+	}
+
+	/**
+	 * Reads a backup and writes it to the database in a single transaction.
+	 * Merging updates frontends with the same name and bindings for the same
+	 * key and frontend, and adds everything else. Replacing deletes all
+	 * frontends and bindings first, and restores the default binding of any
+	 * key the backup does not bind globally. Invalid rows are skipped.
+	 * 
+	 * @throws IOException
+	 *             if the backup cannot be read, in which case nothing changes
+	 */
+	public BackupFormat.Result importBackup(final BufferedReader in,
+			boolean replace) throws IOException {
+		open();
+		final BackupFormat.Contents contents = BackupFormat.read(in);
+		BackupFormat.Result result = new BackupFormat.Result();
+		result.Skipped = contents.skipped;
+
+		// existing rows that merged rows replace
+		HashMap<String, Integer> frontendsByName = new HashMap<String, Integer>();
+		HashMap<String, Integer> bindingsByKey = new HashMap<String, Integer>();
+		if (!replace) {
+			for (FrontendLocation location : getAllFrontendLocations())
+				frontendsByName.put(location.Name, location.ID);
+			for (KeyBindingEntry entry : readKeyBindings())
+				bindingsByKey.put(bindingKey(entry.getLocationId(), entry
+						.getMythKey()), entry.getRowID());
+		}
+
+		db.beginTransaction();
+		try {
+			if (replace) {
+				statements.deleteAllKeyBindings();
+				statements.deleteAllFrontends();
+			}
+
+			HashMap<Integer, Integer> locationIds = new HashMap<Integer, Integer>();
+			for (FrontendLocation location : contents.frontends) {
+				Integer id = frontendsByName.get(location.Name);
+				if (null != id) {
+					statements.updateFrontend(id, location.Name,
+							location.Address, location.Port);
+				} else {
+					long rowId = statements.insertFrontend(location.Name,
+							location.Address, location.Port);
+					if (rowId == -1)
+						throw new SQLException("Could not import frontend "
+								+ location.Name);
+					id = (int) rowId;
+					frontendsByName.put(location.Name, id);
+				}
+				locationIds.put(location.ID, id);
+				result.Frontends++;
+			}
+
+			for (KeyBindingEntry entry : contents.keyBindings) {
+				int locationId = entry.isLocationSpecific() ? locationIds
+						.get(entry.getLocationId())
+						: MythMoteDbHelper.GLOBAL_LOCATION_ID;
+				importKeyBinding(entry, locationId, bindingsByKey);
+				result.KeyBindings++;
+			}
+
+			if (replace) {
+				for (KeyBindingEntry entry : MythKey.createDefaultList()) {
+					if (!bindingsByKey.containsKey(bindingKey(
+							MythMoteDbHelper.GLOBAL_LOCATION_ID, entry
+									.getMythKey())))
+						importKeyBinding(entry,
+								MythMoteDbHelper.GLOBAL_LOCATION_ID,
+								bindingsByKey);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		invalidateSnapshot();
+		if (replace || result.Frontends > 0)
+			MythMoteRepository.notifyFrontendsReset();
+		return result;
+	}
+
+	/**
+	 * Updates the binding of the entry's key for the location, or adds one
+	 */
+	private void importKeyBinding(final KeyBindingEntry entry,
+			final int locationId, final HashMap<String, Integer> bindingsByKey) {
+		String key = bindingKey(locationId, entry.getMythKey());
+		Integer rowId = bindingsByKey.get(key);
+		KeyBindingEntry row = new KeyBindingEntry(null == rowId ? -1 : rowId,
+				entry.getFriendlyName(), entry.getMythKey(),
+				entry.getCommand(), entry.requiresConfirmation(), locationId);
+		if (null != rowId) {
+			statements.updateKeyBinding(row);
+			return;
+		}
+		long inserted = statements.insertKeyBinding(row);
+		if (inserted == -1)
+			throw new SQLException("Could not import key binding "
+					+ entry.getMythKey());
+		bindingsByKey.put(key, (int) inserted);
 	}
 
+	private static FrontendLocation frontend(int id, String name,
+			String address, int port) {
+		FrontendLocation location = new FrontendLocation();
+		location.ID = id;
+		location.Name = name;
+		location.Address = address;
+		location.Port = port;
+		return location;
+	}
+
+	private static String bindingKey(int locationId, MythKey mythKey) {
+		return locationId + ":" + mythKey.name();
+	}
+
+	/**
+	 * Binds every key binding through the binder. Bindings come from the
+	 * in-memory snapshot, so only the first call reads the database.
+	 */
 	public void loadKeyMapEntries(final KeyMapBinder binder) {
+		for (KeyBindingEntry entry : getKeyBindings())
+			binder.bind(entry);
+	}
+
+	/**
+	 * Returns an immutable snapshot of all key bindings. The snapshot is read
+	 * from the database once per process and is replaced whenever save()
+	 * changes a row.
+	 */
+	public List<KeyBindingEntry> getKeyBindings() {
+		List<KeyBindingEntry> snapshot = sKeyBindings;
+		if (snapshot != null)
+			return snapshot;
+
+		synchronized (MythMoteDbManager.class) {
+			if (sKeyBindings == null) {
+				open();
+				sKeyBindings = Collections.unmodifiableList(readKeyBindings());
+			}
+			return sKeyBindings;
+		}
+	}
+
+	/**
+	 * Returns the key bindings that apply to a frontend location: the global
+	 * bindings with the location's own bindings laid over them. Overlays are
+	 * built in memory from the snapshot and kept until a binding changes.
+	 */
+	public List<KeyBindingEntry> getKeyBindings(int locationId) {
+		getKeyBindings();
+		return getCachedKeyBindings(locationId);
+	}
+
+	/**
+	 * Returns the key bindings for the location if the snapshot has been
+	 * loaded, else null. Never touches the database.
+	 */
+	public static List<KeyBindingEntry> getCachedKeyBindings(int locationId) {
+		synchronized (MythMoteDbManager.class) {
+			final List<KeyBindingEntry> snapshot = sKeyBindings;
+			if (snapshot == null)
+				return null;
+
+			List<KeyBindingEntry> overlay = sOverlays.get(locationId);
+			if (overlay == null) {
+				overlay = buildOverlay(snapshot, locationId);
+				sOverlays.put(locationId, overlay);
+			}
+			return overlay;
+		}
+	}
+
+	/**
+	 * Returns the binding for the key that applies to the location, or null
+	 * if the snapshot has not been loaded
+	 */
+	public static KeyBindingEntry getCachedKeyBinding(MythKey mythKey,
+			int locationId) {
+		List<KeyBindingEntry> bindings = getCachedKeyBindings(locationId);
+		if (bindings == null)
+			return null;
+		for (KeyBindingEntry entry : bindings) {
+			if (entry.getMythKey() == mythKey)
+				return entry;
+		}
+		return null;
+	}
+
+	private static List<KeyBindingEntry> buildOverlay(
+			final List<KeyBindingEntry> snapshot, final int locationId) {
+		LinkedHashMap<MythKey, KeyBindingEntry> bindings = new LinkedHashMap<MythKey, KeyBindingEntry>();
+		for (KeyBindingEntry entry : snapshot) {
+			if (!entry.isLocationSpecific())
+				bindings.put(entry.getMythKey(), entry);
+		}
+		if (locationId != MythMoteDbHelper.GLOBAL_LOCATION_ID) {
+			for (KeyBindingEntry entry : snapshot) {
+				if (entry.getLocationId() == locationId)
+					bindings.put(entry.getMythKey(), entry);
+			}
+		}
+		return Collections.unmodifiableList(new ArrayList<KeyBindingEntry>(
+				bindings.values()));
+	}
+
+	/**
+	 * Puts the saved entry in place of the one with the same row in the
+	 * snapshot, or removes it, and drops the overlays built from the old
+	 * snapshot
+	 */
+	private static void updateSnapshot(final KeyBindingEntry entry,
+			boolean removed) {
+		synchronized (MythMoteDbManager.class) {
+			final List<KeyBindingEntry> snapshot = sKeyBindings;
+			if (snapshot == null)
+				return;
+
+			ArrayList<KeyBindingEntry> updated = new ArrayList<KeyBindingEntry>(
+					snapshot);
+			boolean found = false;
+			for (int i = 0; i < updated.size(); i++) {
+				if (updated.get(i).getRowID() == entry.getRowID()) {
+					found = true;
+					if (removed)
+						updated.remove(i);
+					else
+						updated.set(i, entry);
+					break;
+				}
+			}
+			if (!found && !removed)
+				updated.add(entry);
+			sKeyBindings = Collections.unmodifiableList(updated);
+			sOverlays.clear();
+		}
+	}
+
+	/**
+	 * Turns on write-ahead logging where the platform has it (Android 3.0
+	 * and later), so reads are not blocked by writes
+	 */
+	private static void enableWriteAheadLogging(SQLiteDatabase database) {
+		try {
+			Method enable = SQLiteDatabase.class
+					.getMethod("enableWriteAheadLogging");
+			enable.invoke(database);
+		} catch (NoSuchMethodException e) {
+			// older platform, keep the default journal
+		} catch (Exception e) {
+			Log.w(MythMoteDbHelper.TAG, "Could not enable write-ahead logging",
+					e);
+		}
+	}
+
+	/**
+	 * Makes the next load read the bindings from the database again
+	 */
+	private static void invalidateSnapshot() {
+		synchronized (MythMoteDbManager.class) {
+			sKeyBindings = null;
+			sOverlays.clear();
+		}
+	}
+
+	private ArrayList<KeyBindingEntry> readKeyBindings() {
+		ArrayList<KeyBindingEntry> entries = new ArrayList<KeyBindingEntry>();
 		Cursor mCursor = null;
 		try {
 			mCursor = db.query(true, KEY_BINDINGS_TABLE,
 					new String[] { KEYBINDINGS_ROWID, KEYBINDINGS_COMMAND,
 							KEYBINDINGS_UI_KEY, KEYBINDINGS_FRIENDLY_NAME,
-							KEYBINDINGS_REQUIRE_CONFIRMATION }, null, null,
+							KEYBINDINGS_REQUIRE_CONFIRMATION,
+							KEYBINDINGS_LOCATION_ID }, null, null,
 					null, null, null, null);
-			if (mCursor != null) {
-				mCursor.moveToFirst();
-			}
 		} catch (SQLException e) {
-			AlertDialog.Builder builder = new AlertDialog.Builder(context);
-			builder.setTitle("DataBase Error");
-			builder.setMessage(e.getLocalizedMessage());
-			builder.show();
+			// may be running on the database thread, no dialogs here
+			Log.e(MythMoteDbHelper.TAG, "Could not read key bindings", e);
 		}
 		if (null == mCursor)
-			return;
-		do {
-			String friendlyName = mCursor.getString(mCursor
-					.getColumnIndex(KEYBINDINGS_FRIENDLY_NAME));
-			String mythKeyName = mCursor.getString(mCursor
-					.getColumnIndex(KEYBINDINGS_UI_KEY));
-			String command = mCursor.getString(mCursor
-					.getColumnIndex(KEYBINDINGS_COMMAND));
-			Integer req = mCursor.getInt(mCursor
-					.getColumnIndex(KEYBINDINGS_REQUIRE_CONFIRMATION));
-			MythKey mythKey = MythKey.getByName(mythKeyName);
-			Integer id = mCursor.getInt(mCursor
-					.getColumnIndex(KEYBINDINGS_ROWID));
-			boolean requiresConfirmation = (req == 1);
-			KeyBindingEntry entry = new KeyBindingEntry(id, friendlyName,
-					mythKey, command, requiresConfirmation);
-			binder.bind(entry);
-		} while (mCursor.moveToNext());
+			return entries;
+
+		final int rowIdIndex = mCursor.getColumnIndex(KEYBINDINGS_ROWID);
+		final int friendlyNameIndex = mCursor
+				.getColumnIndex(KEYBINDINGS_FRIENDLY_NAME);
+		final int mythKeyIndex = mCursor.getColumnIndex(KEYBINDINGS_UI_KEY);
+		final int commandIndex = mCursor.getColumnIndex(KEYBINDINGS_COMMAND);
+		final int confirmationIndex = mCursor
+				.getColumnIndex(KEYBINDINGS_REQUIRE_CONFIRMATION);
+		final int locationIndex = mCursor
+				.getColumnIndex(KEYBINDINGS_LOCATION_ID);
+		while (mCursor.moveToNext()) {
+			MythKey mythKey = MythKey.getByName(mCursor.getString(mythKeyIndex));
+			entries.add(new KeyBindingEntry(mCursor.getInt(rowIdIndex),
+					mCursor.getString(friendlyNameIndex), mythKey, mCursor
+							.getString(commandIndex), mCursor
+							.getInt(confirmationIndex) == 1, mCursor
+							.getInt(locationIndex)));
+		}
 		mCursor.close();
+		return entries;
 	}
 
 }
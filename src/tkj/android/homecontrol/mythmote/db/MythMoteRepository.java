@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2010 Rob Elsner
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote.db;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import tkj.android.homecontrol.mythmote.FrontendLocation;
+import tkj.android.homecontrol.mythmote.Metrics;
+import tkj.android.homecontrol.mythmote.keymanager.KeyBindingEntry;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Asynchronous access to frontend locations and key bindings. All database
+ * work, including opening and upgrading the database, runs on one
+ * background thread shared by the whole process. Results are delivered to
+ * the main thread, so UI code never waits on disk.
+ */
+public class MythMoteRepository {
+
+	/**
+	 * Receives the result of a repository call on the main thread
+	 */
+	public interface Callback<T> {
+		public void onResult(T result);
+	}
+
+	private static final ExecutorService sExecutor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "MythMote-db");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Told about every change to the frontends table, on the main thread, in
+	 * the order the changes were made
+	 */
+	public interface FrontendObserver {
+		/** A location was added, or its name, address or port changed **/
+		public void onFrontendSaved(FrontendLocation location);
+
+		public void onFrontendDeleted(int id);
+
+		/** Many locations changed at once, for example by an import **/
+		public void onFrontendsReset();
+	}
+
+	private static final Handler sMainHandler = new Handler(Looper
+			.getMainLooper());
+
+	private static final CopyOnWriteArrayList<FrontendObserver> sFrontendObservers = new CopyOnWriteArrayList<FrontendObserver>();
+
+	private final MythMoteDbManager manager;
+
+	public MythMoteRepository(final Context ctx) {
+		this.manager = new MythMoteDbManager(ctx.getApplicationContext());
+	}
+
+	/**
+	 * Opens (and if needed creates or upgrades) the database in the
+	 * background so the first real request does not have to
+	 */
+	public void open() {
+		submit(new Callable<Void>() {
+			public Void call() {
+				manager.open();
+				return null;
+			}
+		}, null);
+	}
+
+	/**
+	 * Loads a location; the callback gets null if it does not exist
+	 */
+	public void getFrontendLocation(final long rowId,
+			final Callback<FrontendLocation> callback) {
+		submit(new Callable<FrontendLocation>() {
+			public FrontendLocation call() {
+				manager.open();
+				return manager.getFrontendLocation(rowId);
+			}
+		}, callback);
+	}
+
+	public void getAllFrontendLocations(
+			final Callback<List<FrontendLocation>> callback) {
+		submit(new Callable<List<FrontendLocation>>() {
+			public List<FrontendLocation> call() {
+				manager.open();
+				return manager.getAllFrontendLocations();
+			}
+		}, callback);
+	}
+
+	/**
+	 * Inserts a new location or updates an existing one. The callback gets
+	 * the row id of the location, or -1 if saving failed.
+	 */
+	public void saveFrontendLocation(final FrontendLocation location,
+			final Callback<Long> callback) {
+		final int id = location.ID;
+		final String name = location.Name;
+		final String address = location.Address;
+		final int port = location.Port;
+		submit(new Callable<Long>() {
+			public Long call() {
+				manager.open();
+				if (id == -1)
+					return manager.createFrontendLocation(name, address, port);
+				return manager.updateFrontendLocation(id, name, address, port) ? (long) id
+						: -1L;
+			}
+		}, callback);
+	}
+
+	public void deleteFrontendLocation(final long rowId,
+			final Callback<Boolean> callback) {
+		submit(new Callable<Boolean>() {
+			public Boolean call() {
+				manager.open();
+				return manager.deleteFrontendLocation(rowId);
+			}
+		}, callback);
+	}
+
+	public void getKeyBindings(final Callback<List<KeyBindingEntry>> callback) {
+		submit(new Callable<List<KeyBindingEntry>>() {
+			public List<KeyBindingEntry> call() {
+				return manager.getKeyBindings();
+			}
+		}, callback);
+	}
+
+	/**
+	 * Loads the bindings that apply to a frontend location, global bindings
+	 * included
+	 */
+	public void getKeyBindings(final int locationId,
+			final Callback<List<KeyBindingEntry>> callback) {
+		submit(new Callable<List<KeyBindingEntry>>() {
+			public List<KeyBindingEntry> call() {
+				return manager.getKeyBindings(locationId);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Loads the location on the database thread and waits for it. For
+	 * callers on a background thread of their own, such as the widget
+	 * service; never call it on the main thread. Returns null if the
+	 * location does not exist or loading failed.
+	 */
+	public FrontendLocation loadFrontendLocation(final long rowId) {
+		return await(new Callable<FrontendLocation>() {
+			public FrontendLocation call() {
+				manager.open();
+				return manager.getFrontendLocation(rowId);
+			}
+		});
+	}
+
+	/**
+	 * Loads the bindings that apply to a location on the database thread and
+	 * waits for them, like loadFrontendLocation(). Returns null if loading
+	 * failed.
+	 */
+	public List<KeyBindingEntry> loadKeyBindings(final int locationId) {
+		return await(new Callable<List<KeyBindingEntry>>() {
+			public List<KeyBindingEntry> call() {
+				return manager.getKeyBindings(locationId);
+			}
+		});
+	}
+
+	/**
+	 * Inserts or updates a binding. The callback gets the saved entry, with
+	 * its row id, or null if saving failed.
+	 */
+	public void saveKeyBinding(final KeyBindingEntry entry,
+			final Callback<KeyBindingEntry> callback) {
+		submit(new Callable<KeyBindingEntry>() {
+			public KeyBindingEntry call() {
+				return manager.saveKeyBinding(entry);
+			}
+		}, callback);
+	}
+
+	public void deleteKeyBinding(final KeyBindingEntry entry,
+			final Callback<Boolean> callback) {
+		submit(new Callable<Boolean>() {
+			public Boolean call() {
+				return manager.deleteKeyBinding(entry);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Writes all frontends and key bindings to the file. The backup is
+	 * written next to the file first and renamed over it once complete. The
+	 * callback gets the counts written, or null if the export failed.
+	 */
+	public void exportBackup(final File file,
+			final Callback<BackupFormat.Result> callback) {
+		submit(new Callable<BackupFormat.Result>() {
+			public BackupFormat.Result call() throws IOException {
+				File temp = new File(file.getPath() + ".tmp");
+				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(temp), "UTF-8"), 8192);
+				BackupFormat.Result result;
+				try {
+					result = manager.exportBackup(out);
+				} finally {
+					out.close();
+				}
+				if (!temp.renameTo(file))
+					throw new IOException("Could not write " + file);
+				return result;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Imports a backup written by exportBackup(), merging it with or
+	 * replacing the current data. The callback gets the counts imported, or
+	 * null if the file could not be imported, in which case nothing changed.
+	 */
+	public void importBackup(final File file, final boolean replace,
+			final Callback<BackupFormat.Result> callback) {
+		submit(new Callable<BackupFormat.Result>() {
+			public BackupFormat.Result call() throws IOException {
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						new FileInputStream(file), "UTF-8"), 8192);
+				try {
+					return manager.importBackup(in, replace);
+				} finally {
+					in.close();
+				}
+			}
+		}, callback);
+	}
+
+	public static void addFrontendObserver(FrontendObserver observer) {
+		sFrontendObservers.addIfAbsent(observer);
+	}
+
+	public static void removeFrontendObserver(FrontendObserver observer) {
+		sFrontendObservers.remove(observer);
+	}
+
+	static void notifyFrontendSaved(final FrontendLocation location) {
+		if (sFrontendObservers.isEmpty())
+			return;
+		sMainHandler.post(new Runnable() {
+			public void run() {
+				for (FrontendObserver observer : sFrontendObservers)
+					observer.onFrontendSaved(location);
+			}
+		});
+	}
+
+	static void notifyFrontendDeleted(final int id) {
+		if (sFrontendObservers.isEmpty())
+			return;
+		sMainHandler.post(new Runnable() {
+			public void run() {
+				for (FrontendObserver observer : sFrontendObservers)
+					observer.onFrontendDeleted(id);
+			}
+		});
+	}
+
+	static void notifyFrontendsReset() {
+		if (sFrontendObservers.isEmpty())
+			return;
+		sMainHandler.post(new Runnable() {
+			public void run() {
+				for (FrontendObserver observer : sFrontendObservers)
+					observer.onFrontendsReset();
+			}
+		});
+	}
+
+	/**
+	 * Runs the work on the database thread and waits for its result.
+	 * Failures are logged and reported as null.
+	 */
+	private static <T> T await(final Callable<T> work) {
+		final long start = SystemClock.uptimeMillis();
+		try {
+			return sExecutor.submit(work).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Log.e(MythMoteDbHelper.TAG, "Database request failed", e.getCause());
+			return null;
+		} finally {
+			Metrics.DB_TIME.record(SystemClock.uptimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Runs the work on the database thread and posts its result to the
+	 * callback. Failures are logged and reported as a null result.
+	 */
+	private static <T> void submit(final Callable<T> work,
+			final Callback<T> callback) {
+		sExecutor.execute(new Runnable() {
+			public void run() {
+				T result = null;
+				final long start = SystemClock.uptimeMillis();
+				try {
+					result = work.call();
+				} catch (Exception e) {
+					Log.e(MythMoteDbHelper.TAG, "Database request failed", e);
+				}
+				Metrics.DB_TIME.record(SystemClock.uptimeMillis() - start);
+
+				if (null == callback)
+					return;
+				final T delivered = result;
+				sMainHandler.post(new Runnable() {
+					public void run() {
+						callback.onResult(delivered);
+					}
+				});
+			}
+		});
+	}
+
+}
@@ -16,6 +16,9 @@
 
 package tkj.android.homecontrol.mythmote.keymanager;
 
+import tkj.android.homecontrol.mythmote.CommandFrame;
+import tkj.android.homecontrol.mythmote.CommandSequence;
+import tkj.android.homecontrol.mythmote.db.MythMoteDbHelper;
 import tkj.android.homecontrol.mythmote.keymanager.KeyBindingManager.MythKey;
 
 /**
@@ -41,14 +44,41 @@ public class KeyBindingEntry {
 	 */
 	private String command;
 
+	/**
+	 * The command encoded once for sending
+	 */
+	private CommandFrame frame;
+
+	/**
+	 * The parsed command when it is a sequence of several steps, else null
+	 */
+	private CommandSequence sequence;
+
 	private boolean requiresConfirmation = false;
 	private int rowId;
 
+	/**
+	 * The frontend location this binding is for, or
+	 * MythMoteDbHelper.GLOBAL_LOCATION_ID for the default binding
+	 */
+	private int locationId;
+
 	public KeyBindingEntry(final int rowId, final String friendlyName,
 			final MythKey mythKey, final String command,
 			final boolean requiresConfirm) {
+		this(rowId, friendlyName, mythKey, command, requiresConfirm,
+				MythMoteDbHelper.GLOBAL_LOCATION_ID);
+	}
+
+	public KeyBindingEntry(final int rowId, final String friendlyName,
+			final MythKey mythKey, final String command,
+			final boolean requiresConfirm, final int locationId) {
 		this.rowId = rowId;
+		this.locationId = locationId;
 		this.command = command;
+		this.frame = CommandFrame.create(command);
+		CommandSequence parsed = CommandSequence.parse(command);
+		this.sequence = parsed.isMacro() ? parsed : null;
 		this.mythKey = mythKey;
 		this.friendlyName = friendlyName;
 		this.requiresConfirmation = requiresConfirm;
@@ -71,6 +101,18 @@ public class KeyBindingEntry {
 		return command;
 	}
 
+	public CommandFrame getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Returns the command sequence to run, or null if the command is a
+	 * single command sent with {@link #getFrame()}
+	 */
+	public CommandSequence getSequence() {
+		return sequence;
+	}
+
 	public boolean requiresConfirmation() {
 		return requiresConfirmation;
 	}
@@ -79,4 +121,15 @@ public class KeyBindingEntry {
 		return rowId;
 	}
 
+	public int getLocationId() {
+		return locationId;
+	}
+
+	/**
+	 * Returns true if this binding only applies to one frontend location
+	 */
+	public boolean isLocationSpecific() {
+		return locationId != MythMoteDbHelper.GLOBAL_LOCATION_ID;
+	}
+
 }
@@ -59,28 +59,37 @@ import static tkj.android.homecontrol.mythmote.R.id.ButtonVolDown;
 import static tkj.android.homecontrol.mythmote.R.id.ButtonVolUp;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import tkj.android.homecontrol.mythmote.ChannelEntry;
+import tkj.android.homecontrol.mythmote.LatencyTrace;
 import tkj.android.homecontrol.mythmote.MythCom;
 import tkj.android.homecontrol.mythmote.MythMote;
 import tkj.android.homecontrol.mythmote.R;
+import tkj.android.homecontrol.mythmote.StartupTrace;
+import tkj.android.homecontrol.mythmote.WidgetService;
+import tkj.android.homecontrol.mythmote.db.MythMoteDbHelper;
 import tkj.android.homecontrol.mythmote.db.MythMoteDbManager;
+import tkj.android.homecontrol.mythmote.db.MythMoteRepository;
 
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.text.Editable;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.HapticFeedbackConstants;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.View.OnLongClickListener;
+import android.view.View.OnTouchListener;
+import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 
 public class KeyBindingManager implements KeyMapBinder, OnClickListener,
-		OnLongClickListener {
+		OnLongClickListener, OnTouchListener {
 
 	/**
 	 * Add a value here which is the button name (preferably similar to the
@@ -135,11 +144,13 @@ public class KeyBindingManager implements KeyMapBinder, OnClickListener,
 		}
 
 		public static MythKey getByName(final String name) {
-			for (MythKey key : MythKey.values()) {
-				if (key.name().equals(name))
-					return key;
+			if (null == name)
+				return MythKey.BUTTON_0;
+			try {
+				return MythKey.valueOf(name);
+			} catch (IllegalArgumentException e) {
+				return MythKey.BUTTON_0;
 			}
-			return MythKey.BUTTON_0;
 		}
 
 		public static List<KeyBindingEntry> createDefaultList() {
@@ -232,44 +243,96 @@ public class KeyBindingManager implements KeyMapBinder, OnClickListener,
 
 	private KeyMapBinder binder = null;
 
-	private Map<View, KeyBindingEntry> viewToEntryMap = new HashMap<View, KeyBindingEntry>();
+	/**
+	 * Bound entries keyed by their button's layout id. Views themselves are
+	 * not kept, so re-inflated layouts do not leave old views reachable.
+	 * Lookups are a binary search over a few dozen sorted int keys, O(log n)
+	 * but without hashing or boxing the id.
+	 */
+	private final SparseArray<KeyBindingEntry> idToEntryMap = new SparseArray<KeyBindingEntry>();
 
 	private MythCom communicator;
 
-	private MythMoteDbManager databaseAdapter;
+	private MythMoteRepository repository;
+
+	private Context context;
 	
 	private boolean mHapticFeedbackEnabled = false;
 	
 	private boolean mEditingEnabled = true;
 
+	private ChannelEntry mChannelEntry = null;
+
+	/** Frontend location whose bindings are laid over the global ones **/
+	private int mLocationId = MythMoteDbHelper.GLOBAL_LOCATION_ID;
+
 	public KeyBindingManager(final Context ctx, final KeyMapBinder binder,
 			final MythCom communicator) {
 		Log.d(MythMote.LOG_TAG, "Created KeyBindingManager with ctx " + ctx
 				+ " binder " + binder + " comm " + communicator);
-		this.databaseAdapter = new MythMoteDbManager(ctx);
+		this.repository = new MythMoteRepository(ctx);
+		this.context = ctx.getApplicationContext();
 
 		this.binder = binder;
 		this.communicator = communicator;
 
 	}
 
+	/**
+	 * Binds all keys to the current views. Bindings are kept in memory, so
+	 * this is cheap enough to call on every tab change. The first call reads
+	 * them in the background and binds once they arrive.
+	 */
 	public void loadKeys() {
-		Log.d(MythMote.LOG_TAG, "loadKeys with dba " + databaseAdapter);
-		databaseAdapter.open();
-		databaseAdapter.loadKeyMapEntries(this);
-		databaseAdapter.close();
+		final int locationId = mLocationId;
+		List<KeyBindingEntry> snapshot = MythMoteDbManager
+				.getCachedKeyBindings(locationId);
+		if (null != snapshot) {
+			bindAll(snapshot);
+			return;
+		}
+
+		repository.getKeyBindings(locationId,
+				new MythMoteRepository.Callback<List<KeyBindingEntry>>() {
+					public void onResult(List<KeyBindingEntry> entries) {
+						//ignore bindings for a location no longer selected
+						if (null != entries && locationId == mLocationId) {
+							bindAll(entries);
+							StartupTrace.mark(StartupTrace.BINDINGS_LOADED);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Switches to the bindings of another frontend location. Keys without a
+	 * binding of their own for that location use the global binding.
+	 */
+	public void setLocationId(int locationId) {
+		if (locationId == mLocationId)
+			return;
+		mLocationId = locationId;
+		loadKeys();
+	}
+
+	public int getLocationId() {
+		return mLocationId;
+	}
+
+	private void bindAll(final List<KeyBindingEntry> entries) {
+		for (KeyBindingEntry entry : entries)
+			bind(entry);
 	}
 
 	public View bind(KeyBindingEntry entry) {
-		Log.d(MythMote.LOG_TAG, "Bind " + entry.getFriendlyName() + " to "
-				+ entry.getCommand());
 		View v = binder.bind(entry);
-		viewToEntryMap.put(v, entry);
+		if (null != v)
+			idToEntryMap.put(entry.getMythKey().getButtonId(), entry);
 		return v;
 	}
 
 	public KeyBindingEntry getCommand(final View initiatingView) {
-		return viewToEntryMap.get(initiatingView);
+		return idToEntryMap.get(initiatingView.getId());
 	}
 	
 	public boolean getHapticFeedbackEnabled(){
@@ -288,16 +351,41 @@ public class KeyBindingManager implements KeyMapBinder, OnClickListener,
 		mEditingEnabled = enabled;
 	}
 
+	/**
+	 * Sets the channel entry that gets first look at number pad buttons
+	 */
+	public void setChannelEntry(ChannelEntry channelEntry){
+		mChannelEntry = channelEntry;
+	}
+
+	/**
+	 * Notes when the finger left a button, for latency tracing. The click
+	 * itself is left to onClick().
+	 */
+	public boolean onTouch(View v, MotionEvent event) {
+		if (event.getAction() == MotionEvent.ACTION_UP)
+			LatencyTrace.touch(event.getEventTime());
+		return false;
+	}
+
 	public void onClick(View v) {
+		LatencyTrace.mark(LatencyTrace.CLICK);
 
-		KeyBindingEntry entry = viewToEntryMap.get(v);
+		KeyBindingEntry entry = idToEntryMap.get(v.getId());
+		LatencyTrace.mark(LatencyTrace.LOOKUP);
 
 		if (null != entry && null != communicator) {
-			Log.d(MythMote.LOG_TAG, "onClick " + entry.getFriendlyName()
-					+ " command " + entry.getCommand());
-			
-			//send command
-			communicator.SendCommand(entry.getCommand());
+			//digits typed in channel entry mode are sent later as one command
+			if (null == mChannelEntry
+					|| !mChannelEntry.handleKey(entry.getMythKey())) {
+				if (null != entry.getSequence()) {
+					//multi-step commands run in the background
+					communicator.SendSequence(entry.getSequence());
+				} else {
+					//send pre-encoded command, no allocation on this path
+					communicator.SendCommand(entry.getFrame());
+				}
+			}
 			
 			//perform haptic feedback if enabled
 			if(mHapticFeedbackEnabled){
@@ -307,6 +395,8 @@ public class KeyBindingManager implements KeyMapBinder, OnClickListener,
 			}
 		}
 
+		//a press that wrote nothing itself is not traced
+		LatencyTrace.abandon();
 	}
 
 	public boolean onLongClick(final View v) {
@@ -323,25 +413,34 @@ public class KeyBindingManager implements KeyMapBinder, OnClickListener,
 
 		// Set an EditText view to get user input
 		final EditText input = new EditText(v.getContext());
-		KeyBindingEntry currentEntry = viewToEntryMap.get(v);
+		KeyBindingEntry currentEntry = idToEntryMap.get(v.getId());
 		if (null != currentEntry)
 			input.setText(currentEntry.getCommand());
-		alert.setView(input);
+
+		// let the binding apply to the selected frontend only
+		final CheckBox locationOnly = new CheckBox(v.getContext());
+		locationOnly.setText(R.string.command_edit_location_str);
+		locationOnly.setChecked(null != currentEntry
+				&& currentEntry.isLocationSpecific());
+
+		LinearLayout layout = new LinearLayout(v.getContext());
+		layout.setOrientation(LinearLayout.VERTICAL);
+		layout.addView(input);
+		if (mLocationId != MythMoteDbHelper.GLOBAL_LOCATION_ID)
+			layout.addView(locationOnly);
+		alert.setView(layout);
 
 		//set positive action button
 		alert.setPositiveButton("Save", new DialogInterface.OnClickListener() {
 			public void onClick(DialogInterface dialog, int whichButton) {
 				Editable value = input.getText();
-				KeyBindingEntry oldEntry = viewToEntryMap.get(v);
+				KeyBindingEntry oldEntry = idToEntryMap.get(v.getId());
 				if (null != oldEntry && null != communicator) {
 					Log.d(MythMote.LOG_TAG,
 							"onLongClick " + oldEntry.getFriendlyName());
-					KeyBindingEntry entry = new KeyBindingEntry(oldEntry
-							.getRowID(), oldEntry.getFriendlyName(), oldEntry
-							.getMythKey(), value.toString(), oldEntry
-							.requiresConfirmation());
-					viewToEntryMap.put(v, entry);
-					databaseAdapter.save(entry);
+					boolean scoped = mLocationId != MythMoteDbHelper.GLOBAL_LOCATION_ID
+							&& locationOnly.isChecked();
+					saveBinding(v.getId(), oldEntry, value.toString(), scoped);
 				}
 			}
 		});
@@ -360,4 +459,48 @@ public class KeyBindingManager implements KeyMapBinder, OnClickListener,
 		//return true, we consumed the long-press
 		return true;
 	}
+
+	/**
+	 * Saves an edited command either as the global binding or as a binding
+	 * for the selected location only
+	 */
+	private void saveBinding(final int buttonId, final KeyBindingEntry oldEntry,
+			final String command, boolean locationOnly) {
+		KeyBindingEntry entry;
+		if (locationOnly) {
+			//update this location's binding, or add one over the global
+			int rowId = oldEntry.isLocationSpecific() ? oldEntry.getRowID()
+					: -1;
+			entry = new KeyBindingEntry(rowId, oldEntry.getFriendlyName(),
+					oldEntry.getMythKey(), command, oldEntry
+							.requiresConfirmation(), mLocationId);
+		} else {
+			KeyBindingEntry global = oldEntry;
+			if (oldEntry.isLocationSpecific()) {
+				//drop this location's binding, the global one applies again
+				repository.deleteKeyBinding(oldEntry, null);
+				global = MythMoteDbManager.getCachedKeyBinding(oldEntry
+						.getMythKey(), MythMoteDbHelper.GLOBAL_LOCATION_ID);
+				if (null == global)
+					global = oldEntry;
+			}
+			entry = new KeyBindingEntry(global.isLocationSpecific() ? -1
+					: global.getRowID(), global.getFriendlyName(), global
+					.getMythKey(), command, global.requiresConfirmation());
+		}
+
+		final KeyBindingEntry edited = entry;
+		idToEntryMap.put(buttonId, edited);
+		repository.saveKeyBinding(edited,
+				new MythMoteRepository.Callback<KeyBindingEntry>() {
+					public void onResult(KeyBindingEntry saved) {
+						//keep the row id of newly inserted bindings
+						if (null != saved && idToEntryMap.get(buttonId) == edited)
+							idToEntryMap.put(buttonId, saved);
+
+						//widgets show the bindings' names
+						WidgetService.requestUpdate(context);
+					}
+				});
+	}
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 Thomas G. Kenny Jr
+ *
+ * Licensed under the GNU General Public License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tkj.android.homecontrol.mythmote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks that a key press does not allocate once its frame exists. Presses
+ * go through MythCom's send path on the UI thread, as the buttons do, to a
+ * local server standing in for the frontend. Allocations are counted per
+ * thread by the VM over several windows and the quietest one is checked, so
+ * a stray allocation by the VM itself does not fail the test.
+ */
+public class CommandFrameAllocationTest extends InstrumentationTestCase {
+
+	private static final int WARM_UP = 2000;
+	private static final int PRESSES = 2000;
+	private static final int WINDOWS = 5;
+	private static final long CONNECT_TIMEOUT = 5000;
+	private static final String[] KEYS = { "up", "down", "left", "right",
+			"enter" };
+
+	private ServerSocket mServer;
+	private Thread mDrain;
+	private MythCom mComm;
+	private boolean mTraceWasEnabled;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		mDrain = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "MythMote-test-frontend");
+		mDrain.start();
+
+		final FrontendLocation location = new FrontendLocation();
+		location.Name = "test";
+		location.Address = "127.0.0.1";
+		location.Port = mServer.getLocalPort();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			public void run() {
+				mComm = new MythCom(getInstrumentation().getTargetContext());
+				mComm.Connect(location, 0);
+			}
+		});
+
+		final long deadline = SystemClock.uptimeMillis() + CONNECT_TIMEOUT;
+		while (!mComm.IsConnected() && SystemClock.uptimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("could not connect to the test frontend",
+				mComm.IsConnected());
+
+		mTraceWasEnabled = LatencyTrace.isEnabled();
+		LatencyTrace.setEnabled(true);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		LatencyTrace.setEnabled(mTraceWasEnabled);
+		getInstrumentation().runOnMainSync(new Runnable() {
+			public void run() {
+				mComm.Shutdown();
+			}
+		});
+		mServer.close();
+		mDrain.join(CONNECT_TIMEOUT);
+		super.tearDown();
+	}
+
+	public void testEncodedCommandDoesNotAllocate() {
+		final CommandFrame frame = CommandFrame.create("key enter");
+		assertNoAllocation(new Runnable() {
+			public void run() {
+				for (int i = 0; i < PRESSES; i++) {
+					LatencyTrace.mark(LatencyTrace.CLICK);
+					LatencyTrace.mark(LatencyTrace.LOOKUP);
+					mComm.SendCommand(frame);
+				}
+			}
+		});
+	}
+
+	public void testPooledKeyDoesNotAllocate() {
+		assertNoAllocation(new Runnable() {
+			public void run() {
+				for (int i = 0; i < PRESSES; i++) {
+					LatencyTrace.mark(LatencyTrace.CLICK);
+					mComm.SendKey(KEYS[i % KEYS.length]);
+				}
+			}
+		});
+	}
+
+	public void testCharKeyDoesNotAllocate() {
+		assertNoAllocation(new Runnable() {
+			public void run() {
+				for (int i = 0; i < PRESSES; i++)
+					mComm.SendKey((char) ('a' + i % 26));
+			}
+		});
+	}
+
+	/**
+	 * Runs the presses on the UI thread, first to warm up and then once per
+	 * window, and fails if every window allocated
+	 */
+	private void assertNoAllocation(final Runnable presses) {
+		final long[] allocated = new long[WINDOWS];
+		getInstrumentation().runOnMainSync(new Runnable() {
+			public void run() {
+				for (int i = 0; i < WARM_UP / PRESSES; i++)
+					presses.run();
+
+				Debug.startAllocCounting();
+				try {
+					for (int i = 0; i < WINDOWS; i++) {
+						Debug.resetThreadAllocSize();
+						presses.run();
+						allocated[i] = Debug.getThreadAllocSize();
+					}
+				} finally {
+					Debug.stopAllocCounting();
+				}
+			}
+		});
+
+		assertTrue("lost the connection while sending", mComm.IsConnected());
+		long least = allocated[0];
+		for (int i = 1; i < WINDOWS; i++)
+			least = Math.min(least, allocated[i]);
+		assertEquals("bytes allocated by " + PRESSES
+				+ " presses in the quietest window", 0, least);
+	}
+
+	/** Accepts the session and reads whatever is sent until it is closed **/
+	private void drain() {
+		final byte[] buffer = new byte[4096];
+		try {
+			Socket client = mServer.accept();
+			try {
+				InputStream in = client.getInputStream();
+				while (in.read(buffer) != -1) {
+				}
+			} finally {
+				client.close();
+			}
+		} catch (IOException e) {
+			// the server was closed
+		}
+	}
+
+}